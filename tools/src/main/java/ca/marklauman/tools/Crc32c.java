@@ -0,0 +1,97 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import java.util.zip.Checksum;
+
+/** CRC-32C (Castagnoli) checksum, as used by iSCSI, ext4 and btrfs.
+ *  {@code java.util.zip.CRC32C} is not available on older versions of android,
+ *  so this computes it in software, eight bytes at a time.
+ *  @author Mark Lauman */
+@SuppressWarnings("unused")
+public class Crc32c implements Checksum {
+
+    /** Reversed Castagnoli polynomial. */
+    private static final int POLY = 0x82F63B78;
+    /** Lookup tables for slicing-by-8. Table 0 is the classic byte-wise table. */
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for(int i=0; i<256; i++) {
+            int crc = i;
+            for(int bit=0; bit<8; bit++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            TABLES[0][i] = crc;
+        }
+        for(int i=0; i<256; i++) {
+            int crc = TABLES[0][i];
+            for(int t=1; t<8; t++) {
+                crc = TABLES[0][crc & 0xFF] ^ (crc >>> 8);
+                TABLES[t][i] = crc;
+            }
+        }
+    }
+
+    /** The current checksum, pre-inverted. */
+    private int crc = 0xFFFFFFFF;
+
+
+    @Override
+    public void update(int b) {
+        crc = TABLES[0][(crc ^ b) & 0xFF] ^ (crc >>> 8);
+    }
+
+
+    /** Update the checksum with all the bytes in the array. */
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3],
+                    t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        int end = off + len;
+
+        // Eight bytes at a time
+        while(off + 8 <= end) {
+            int lo = c ^ ((b[off] & 0xFF) | (b[off+1] & 0xFF) << 8
+                          | (b[off+2] & 0xFF) << 16 | (b[off+3] & 0xFF) << 24);
+            c = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF]
+              ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+              ^ t3[b[off+4] & 0xFF] ^ t2[b[off+5] & 0xFF]
+              ^ t1[b[off+6] & 0xFF] ^ t0[b[off+7] & 0xFF];
+            off += 8;
+        }
+
+        // Whatever is left over
+        while(off < end)
+            c = t0[(c ^ b[off++]) & 0xFF] ^ (c >>> 8);
+        crc = c;
+    }
+
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
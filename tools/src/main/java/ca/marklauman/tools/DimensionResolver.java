@@ -0,0 +1,215 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+import java.lang.ref.WeakReference;
+
+/** Converts dp, sp and pt measurements into pixels.
+ *  Each resolver is a snapshot of the display metrics of one configuration, so
+ *  conversions do no lookups at all. {@link #get(Context)} hands out the same snapshot
+ *  for as long as it is given contexts with the same {@link Resources}, until the
+ *  configuration changes.<br/>
+ *  <br/>
+ *  Conversions match {@link android.util.TypedValue#applyDimension(int, float,
+ *  DisplayMetrics)}. The int versions round to the nearest pixel.
+ *  @author Mark Lauman */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class DimensionResolver {
+
+    /** The snapshot of the current configuration. Null if there is none. */
+    private static volatile DimensionResolver current;
+    /** True once the snapshot is dropped on configuration changes. */
+    private static volatile boolean watching = false;
+
+    /** The resources this snapshot was taken from. */
+    private final WeakReference<Resources> source;
+
+    /** Pixels per dp. */
+    public final float density;
+    /** Pixels per sp. */
+    public final float scaledDensity;
+    /** Pixels per pt. */
+    public final float ptDensity;
+
+
+    /** Create a snapshot of some display metrics.
+     *  @param metrics The metrics to convert with. */
+    public DimensionResolver(DisplayMetrics metrics) {
+        this(null, metrics);
+    }
+
+
+    /** Create a snapshot of the display metrics of some resources.
+     *  @param source The resources the metrics came from.
+     *  @param metrics The metrics to convert with. */
+    private DimensionResolver(Resources source, DisplayMetrics metrics) {
+        this.source = new WeakReference<>(source);
+        density = metrics.density;
+        scaledDensity = metrics.scaledDensity;
+        ptDensity = metrics.xdpi / 72f;
+    }
+
+
+    /** Get the snapshot of the current display metrics.
+     *  @param c The context to convert for. Contexts with their own configuration
+     *           get a snapshot of their own metrics.
+     *  @return The resolver for the context's configuration. */
+    public static DimensionResolver get(Context c) {
+        Resources resources = c.getResources();
+        DimensionResolver res = current;
+        // The snapshot is dropped on configuration changes when watching.
+        // Before that (or before API 14), the metrics must be checked as well.
+        if(res != null && res.source.get() == resources
+           && (watching || res.matches(resources.getDisplayMetrics())))
+            return res;
+
+        synchronized(DimensionResolver.class) {
+            if(!watching && Build.VERSION_CODES.ICE_CREAM_SANDWICH <= Build.VERSION.SDK_INT)
+                watching = watchConfiguration(c.getApplicationContext());
+            res = new DimensionResolver(resources, resources.getDisplayMetrics());
+            current = res;
+            return res;
+        }
+    }
+
+
+    /** Convert dp into pixels. */
+    public float dp(float dp) {
+        return dp * density;
+    }
+
+
+    /** Convert dp into pixels, rounded to the nearest pixel. */
+    public int dp(int dp) {
+        return (int) (dp * density + 0.5f);
+    }
+
+
+    /** Convert sp into pixels. */
+    public float sp(float sp) {
+        return sp * scaledDensity;
+    }
+
+
+    /** Convert sp into pixels, rounded to the nearest pixel. */
+    public int sp(int sp) {
+        return (int) (sp * scaledDensity + 0.5f);
+    }
+
+
+    /** Convert points into pixels. */
+    public float pt(float pt) {
+        return pt * ptDensity;
+    }
+
+
+    /** Convert points into pixels, rounded to the nearest pixel. */
+    public int pt(int pt) {
+        return (int) (pt * ptDensity + 0.5f);
+    }
+
+
+    /** Convert several dp measurements into pixels.
+     *  @return A new array holding the measurements in pixels. */
+    public float[] dp(float[] dp) {
+        return scale(dp, density);
+    }
+
+
+    /** Convert several dp measurements into pixels, rounded to the nearest pixel.
+     *  @return A new array holding the measurements in pixels. */
+    public int[] dp(int[] dp) {
+        return scale(dp, density);
+    }
+
+
+    /** Convert several sp measurements into pixels.
+     *  @return A new array holding the measurements in pixels. */
+    public float[] sp(float[] sp) {
+        return scale(sp, scaledDensity);
+    }
+
+
+    /** Convert several sp measurements into pixels, rounded to the nearest pixel.
+     *  @return A new array holding the measurements in pixels. */
+    public int[] sp(int[] sp) {
+        return scale(sp, scaledDensity);
+    }
+
+
+    /** Convert several point measurements into pixels.
+     *  @return A new array holding the measurements in pixels. */
+    public float[] pt(float[] pt) {
+        return scale(pt, ptDensity);
+    }
+
+
+    /** Convert several point measurements into pixels, rounded to the nearest pixel.
+     *  @return A new array holding the measurements in pixels. */
+    public int[] pt(int[] pt) {
+        return scale(pt, ptDensity);
+    }
+
+
+    /** Check if this snapshot was taken from these metrics. */
+    private boolean matches(DisplayMetrics metrics) {
+        return density == metrics.density && scaledDensity == metrics.scaledDensity
+               && ptDensity == metrics.xdpi / 72f;
+    }
+
+
+    /** Multiply every value by a factor. */
+    private static float[] scale(float[] values, float factor) {
+        float[] res = new float[values.length];
+        for(int i=0; i<values.length; i++)
+            res[i] = values[i] * factor;
+        return res;
+    }
+
+
+    /** Multiply every value by a factor and round the results. */
+    private static int[] scale(int[] values, float factor) {
+        int[] res = new int[values.length];
+        for(int i=0; i<values.length; i++)
+            res[i] = (int) (values[i] * factor + 0.5f);
+        return res;
+    }
+
+
+    /** Drop the snapshot whenever the configuration changes.
+     *  @param app The application context.
+     *  @return True if the snapshot is now dropped on configuration changes. */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static boolean watchConfiguration(Context app) {
+        if(app == null) return false;
+        app.registerComponentCallbacks(new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                current = null;
+            }
+
+            @Override
+            public void onLowMemory() {}
+        });
+        return true;
+    }
+}
@@ -0,0 +1,233 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** Counts characters in UTF-8 files without loading them into memory.
+ *  Used by {@link Utils#countChar(File, char)} and {@link Utils#countChars(File, char...)}.<br/>
+ *  <br/>
+ *  The file is memory-mapped in chunks, and large files have their chunks counted in
+ *  parallel. Characters are matched as their UTF-8 bytes. As no UTF-8 sequence can
+ *  start inside another one, the bytes can be searched directly, without decoding.
+ *  @author Mark Lauman */
+final class FileCharCounter {
+
+    /** Size of the chunk of the file mapped and counted by each task. */
+    static final int CHUNK_SIZE = 32 * 1024 * 1024;
+    /** Longest UTF-8 encoding of a char that is not a surrogate. */
+    private static final int MAX_UTF8 = 3;
+
+    /** Counts the chunks of large files. */
+    private static ExecutorService workers;
+
+    /** UTF-8 bytes of each needle. */
+    private final byte[][] patterns;
+    /** Index of the first needle starting with each byte, or -1 if there is none. */
+    private final int[] first = new int[256];
+    /** Index of the next needle with the same first byte, or -1 if there is none. */
+    private final int[] next;
+
+
+    /** Create a counter for some characters.
+     *  @param needles The characters to count. Surrogates cannot be counted,
+     *                 as they are not encoded alone in UTF-8. */
+    FileCharCounter(char[] needles) {
+        patterns = new byte[needles.length][];
+        next = new int[needles.length];
+        for(int i=0; i<first.length; i++)
+            first[i] = -1;
+        for(int i=needles.length-1; 0 <= i; i--) {
+            patterns[i] = encode(needles[i]);
+            int lead = patterns[i][0] & 0xFF;
+            next[i] = first[lead];
+            first[lead] = i;
+        }
+    }
+
+
+    /** Count the needles in a file.
+     *  @param file A UTF-8 file.
+     *  @return The number of times each needle appears, in the order of the needles. */
+    long[] count(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if(size <= CHUNK_SIZE) return countChunk(channel, 0, size, size);
+
+            ArrayList<Future<long[]>> tasks = new ArrayList<>((int) (size / CHUNK_SIZE) + 1);
+            for(long start=0; start<size; start+=CHUNK_SIZE)
+                tasks.add(getWorkers().submit(new Chunk(channel, start,
+                                                        Math.min(size, start + CHUNK_SIZE),
+                                                        size)));
+            long[] total = new long[patterns.length];
+            try {
+                for(Future<long[]> task : tasks) {
+                    long[] counts = task.get();
+                    for(int i=0; i<total.length; i++)
+                        total[i] += counts[i];
+                }
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while counting " + file);
+            } catch(ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof IOException) throw (IOException) cause;
+                if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IOException("Could not count " + file + ": " + cause);
+            } finally {
+                for(Future<long[]> task : tasks)
+                    task.cancel(true);
+            }
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /** Count the needles that start in one chunk of a file.
+     *  @param channel The file's channel.
+     *  @param start The first byte of the chunk.
+     *  @param end The byte just after the chunk.
+     *  @param size The size of the file.
+     *  @return The number of times each needle appears. */
+    private long[] countChunk(FileChannel channel, long start, long end, long size)
+            throws IOException {
+        // Map a few bytes more, to finish the last character of the chunk.
+        long mapEnd = Math.min(size, end + MAX_UTF8 - 1);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, mapEnd - start);
+        int limit = (int) (end - start);
+        long[] counts = new long[patterns.length];
+
+        if(patterns.length == 1 && patterns[0].length == 1) {
+            // One ASCII needle: the most common case (line counts)
+            byte needle = patterns[0][0];
+            long count = 0;
+            for(int i=0; i<limit; i++)
+                if(map.get(i) == needle) count++;
+            counts[0] = count;
+            return counts;
+        }
+
+        int mapLimit = map.limit();
+        for(int i=0; i<limit; i++) {
+            for(int n = first[map.get(i) & 0xFF]; 0 <= n; n = next[n]) {
+                if(matches(map, i, mapLimit, patterns[n])) {
+                    counts[n]++;
+                    break;
+                }
+            }
+        }
+        // Needles that appear more than once share the count of their first copy.
+        for(int n=0; n<patterns.length; n++) {
+            int dup = first[patterns[n][0] & 0xFF];
+            while(dup != n && !sameBytes(patterns[dup], patterns[n])) dup = next[dup];
+            counts[n] = counts[dup];
+        }
+        return counts;
+    }
+
+
+    /** Check if the bytes at a position of the map match a pattern. */
+    private static boolean matches(MappedByteBuffer map, int pos, int limit, byte[] pattern) {
+        if(limit < pos + pattern.length) return false;
+        for(int i=1; i<pattern.length; i++)
+            if(map.get(pos + i) != pattern[i]) return false;
+        return true;
+    }
+
+
+    /** Check if two byte arrays hold the same bytes. */
+    private static boolean sameBytes(byte[] a, byte[] b) {
+        if(a.length != b.length) return false;
+        for(int i=0; i<a.length; i++)
+            if(a[i] != b[i]) return false;
+        return true;
+    }
+
+
+    /** Encode one character as UTF-8.
+     *  @throws IllegalArgumentException if the character is a surrogate. */
+    private static byte[] encode(char c) {
+        if(c < 0x80) return new byte[] {(byte) c};
+        if(c < 0x800) return new byte[] {(byte) (0xC0 | c >> 6), (byte) (0x80 | c & 0x3F)};
+        if(Character.MIN_SURROGATE <= c && c <= Character.MAX_SURROGATE)
+            throw new IllegalArgumentException("Surrogates cannot be counted in UTF-8 files");
+        return new byte[] {(byte) (0xE0 | c >> 12), (byte) (0x80 | c >> 6 & 0x3F),
+                           (byte) (0x80 | c & 0x3F)};
+    }
+
+
+    /** Get the executor used to count chunks, creating it if needed. */
+    private static synchronized ExecutorService getWorkers() {
+        if(workers == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "FileCharCounter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return workers;
+    }
+
+
+    /** Task counting one chunk of a file. */
+    private class Chunk implements Callable<long[]> {
+        /** The file's channel. */
+        private final FileChannel channel;
+        /** First byte of the chunk. */
+        private final long start;
+        /** Byte just after the chunk. */
+        private final long end;
+        /** Size of the file. */
+        private final long size;
+
+        Chunk(FileChannel channel, long start, long end, long size) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.size = size;
+        }
+
+        @Override
+        public long[] call() throws IOException {
+            return countChunk(channel, start, end, size);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/** A {@link StreamCopier.Stage} that compresses data into the gzip format.
+ *  The output can be read by {@link java.util.zip.GZIPInputStream}, {@code gunzip}
+ *  or {@link GzipDecompressor}. Deflaters are pooled between copies, so
+ *  compressing many small files does not allocate native state for each one.
+ *  @author Mark Lauman */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class GzipCompressor implements StreamCopier.Stage {
+
+    /** Default size of the buffer holding compressed data. */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    /** Maximum number of deflaters kept in the pool. */
+    private static final int POOL_SIZE = 4;
+    /** Deflaters that are not in use. */
+    private static final ArrayList<Deflater> pool = new ArrayList<>(POOL_SIZE);
+    /** Fixed gzip header: magic number, deflate method, no flags, no time, unknown OS. */
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED,
+                                          0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    /** The compression level used. */
+    private final int level;
+    /** Holds compressed data before it is written. */
+    private final byte[] buffer;
+    /** Checksum of the uncompressed data, written in the trailer. */
+    private final CRC32 crc = new CRC32();
+
+    /** Deflater used by the current copy. */
+    private Deflater deflater;
+    /** Number of uncompressed bytes in the current copy. */
+    private long size;
+
+
+    /** Create a compressor using the default compression level. */
+    public GzipCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION, DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Create a compressor.
+     *  @param level The compression level, from {@link Deflater#BEST_SPEED} to
+     *               {@link Deflater#BEST_COMPRESSION}, or
+     *               {@link Deflater#DEFAULT_COMPRESSION}. */
+    public GzipCompressor(int level) {
+        this(level, DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Create a compressor.
+     *  @param level The compression level, from {@link Deflater#BEST_SPEED} to
+     *               {@link Deflater#BEST_COMPRESSION}, or
+     *               {@link Deflater#DEFAULT_COMPRESSION}.
+     *  @param bufferSize Size of the buffer holding compressed data. */
+    public GzipCompressor(int level, int bufferSize) {
+        if((level < Deflater.BEST_SPEED || Deflater.BEST_COMPRESSION < level)
+                && level != Deflater.DEFAULT_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        this.level = level;
+        buffer = new byte[bufferSize];
+    }
+
+
+    @Override
+    public void start() {
+        deflater = obtain(level);
+        crc.reset();
+        size = 0;
+    }
+
+
+    @Override
+    public int process(byte[] b, int off, int len, OutputStream out) throws IOException {
+        int written = 0;
+        if(size == 0) {
+            out.write(HEADER);
+            written += HEADER.length;
+        }
+        crc.update(b, off, len);
+        size += len;
+        deflater.setInput(b, off, len);
+        while(!deflater.needsInput())
+            written += drain(out);
+        return written;
+    }
+
+
+    @Override
+    public int finish(OutputStream out) throws IOException {
+        int written = 0;
+        if(size == 0) {
+            out.write(HEADER);
+            written += HEADER.length;
+        }
+        deflater.finish();
+        while(!deflater.finished())
+            written += drain(out);
+
+        // Trailer: checksum and size of the uncompressed data, little-endian
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, (int) size);
+        return written + 8;
+    }
+
+
+    @Override
+    public void release() {
+        if(deflater == null) return;
+        recycle(deflater);
+        deflater = null;
+    }
+
+
+    /** Write out whatever the deflater has ready.
+     *  @return The number of bytes written. */
+    private int drain(OutputStream out) throws IOException {
+        int count = deflater.deflate(buffer);
+        if(0 < count) out.write(buffer, 0, count);
+        return count;
+    }
+
+
+    /** Write an int in little-endian order. */
+    static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+
+    /** Get a raw deflater from the pool, or create one if the pool is empty.
+     *  @param level The compression level to use. */
+    private static Deflater obtain(int level) {
+        Deflater res = null;
+        synchronized(pool) {
+            int last = pool.size() - 1;
+            if(0 <= last) res = pool.remove(last);
+        }
+        if(res == null) return new Deflater(level, true);
+        res.setLevel(level);
+        return res;
+    }
+
+
+    /** Return a deflater to the pool, or free it if the pool is full. */
+    private static void recycle(Deflater deflater) {
+        deflater.reset();
+        synchronized(pool) {
+            if(pool.size() < POOL_SIZE) {
+                pool.add(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+}
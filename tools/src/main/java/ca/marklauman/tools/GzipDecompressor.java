@@ -0,0 +1,256 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/** A {@link StreamCopier.Stage} that decompresses gzip data.
+ *  Accepts anything written by {@link GzipCompressor} or {@code gzip}, including
+ *  files made of several gzip members. Inflaters are pooled between copies.
+ *  @author Mark Lauman */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class GzipDecompressor implements StreamCopier.Stage {
+
+    /** Default size of the buffer holding decompressed data. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /** Maximum number of inflaters kept in the pool. */
+    private static final int POOL_SIZE = 4;
+    /** Inflaters that are not in use. */
+    private static final ArrayList<Inflater> pool = new ArrayList<>(POOL_SIZE);
+
+    /** Header flag: the header has a CRC16. */
+    private static final int FHCRC = 2;
+    /** Header flag: the header has an extra field. */
+    private static final int FEXTRA = 4;
+    /** Header flag: the header has a file name. */
+    private static final int FNAME = 8;
+    /** Header flag: the header has a comment. */
+    private static final int FCOMMENT = 16;
+
+    /** Parser state: reading the 10 byte fixed header. */
+    private static final int STATE_HEADER = 0;
+    /** Parser state: reading the length of the extra field. */
+    private static final int STATE_EXTRA_LEN = 1;
+    /** Parser state: skipping the extra field. */
+    private static final int STATE_EXTRA = 2;
+    /** Parser state: skipping the file name. */
+    private static final int STATE_NAME = 3;
+    /** Parser state: skipping the comment. */
+    private static final int STATE_COMMENT = 4;
+    /** Parser state: skipping the header CRC. */
+    private static final int STATE_HCRC = 5;
+    /** Parser state: inflating compressed data. */
+    private static final int STATE_BODY = 6;
+    /** Parser state: reading the 8 byte trailer. */
+    private static final int STATE_TRAILER = 7;
+    /** Parser state: between two members. */
+    private static final int STATE_END = 8;
+
+    /** Holds decompressed data before it is written. */
+    private final byte[] buffer;
+    /** Holds the header or trailer as it is read. */
+    private final byte[] field = new byte[10];
+    /** Checksum of the decompressed data of the current member. */
+    private final CRC32 crc = new CRC32();
+
+    /** Inflater used by the current copy. */
+    private Inflater inflater;
+    /** Current parser state. */
+    private int state;
+    /** Header flags of the current member. */
+    private int flags;
+    /** Bytes of the current header field read, or bytes left to skip. */
+    private int count;
+    /** Number of decompressed bytes in the current member. */
+    private long size;
+
+
+    /** Create a decompressor with the default buffer size. */
+    public GzipDecompressor() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Create a decompressor.
+     *  @param bufferSize Size of the buffer holding decompressed data. */
+    public GzipDecompressor(int bufferSize) {
+        buffer = new byte[bufferSize];
+    }
+
+
+    @Override
+    public void start() {
+        inflater = obtain();
+        state = STATE_HEADER;
+        count = 0;
+        crc.reset();
+        size = 0;
+    }
+
+
+    @Override
+    public int process(byte[] b, int off, int len, OutputStream out) throws IOException {
+        int end = off + len;
+        int written = 0;
+        while(off < end) {
+            if(state == STATE_BODY) {
+                inflater.setInput(b, off, end - off);
+                written += inflate(out);
+                off = end - inflater.getRemaining();
+                if(inflater.finished()) {
+                    state = STATE_TRAILER;
+                    count = 0;
+                }
+                continue;
+            }
+            if(state == STATE_END) {
+                // Another member follows
+                inflater.reset();
+                crc.reset();
+                size = 0;
+                state = STATE_HEADER;
+                count = 0;
+            }
+            header(b[off++] & 0xFF);
+        }
+        return written;
+    }
+
+
+    @Override
+    public int finish(OutputStream out) throws IOException {
+        if(state != STATE_END)
+            throw new IOException("Gzip data ended unexpectedly");
+        return 0;
+    }
+
+
+    @Override
+    public void release() {
+        if(inflater == null) return;
+        recycle(inflater);
+        inflater = null;
+    }
+
+
+    /** Inflate everything the inflater can produce from its current input.
+     *  @return The number of bytes written. */
+    private int inflate(OutputStream out) throws IOException {
+        int written = 0;
+        try {
+            int count;
+            while(0 < (count = inflater.inflate(buffer))) {
+                out.write(buffer, 0, count);
+                crc.update(buffer, 0, count);
+                size += count;
+                written += count;
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Corrupt gzip data: " + e.getMessage());
+        }
+        if(inflater.needsDictionary())
+            throw new IOException("Corrupt gzip data: preset dictionary");
+        return written;
+    }
+
+
+    /** Handle one byte of a header or trailer.
+     *  @param value The byte, as an unsigned value. */
+    private void header(int value) throws IOException {
+        switch(state) {
+            case STATE_HEADER:
+                field[count++] = (byte) value;
+                if(count < 10) return;
+                if((field[0] & 0xFF) != 0x1f || (field[1] & 0xFF) != 0x8b)
+                    throw new IOException("Not in gzip format");
+                if(field[2] != 8)
+                    throw new IOException("Unsupported gzip compression method " + field[2]);
+                flags = field[3];
+                count = 0;
+                nextField(STATE_HEADER);
+                return;
+            case STATE_EXTRA_LEN:
+                field[count++] = (byte) value;
+                if(count < 2) return;
+                count = (field[0] & 0xFF) | (field[1] & 0xFF) << 8;
+                state = STATE_EXTRA;
+                if(count == 0) nextField(STATE_EXTRA);
+                return;
+            case STATE_EXTRA:
+                if(--count == 0) nextField(STATE_EXTRA);
+                return;
+            case STATE_NAME:
+            case STATE_COMMENT:
+                if(value == 0) nextField(state);
+                return;
+            case STATE_HCRC:
+                if(++count == 2) nextField(STATE_HCRC);
+                return;
+            case STATE_TRAILER:
+                field[count++] = (byte) value;
+                if(count < 8) return;
+                if(readInt(0) != (int) crc.getValue())
+                    throw new IOException("Corrupt gzip data: checksum mismatch");
+                if(readInt(4) != (int) size)
+                    throw new IOException("Corrupt gzip data: size mismatch");
+                state = STATE_END;
+        }
+    }
+
+
+    /** Move on to the next optional header field present in the member.
+     *  @param done The state that just finished. */
+    private void nextField(int done) {
+        count = 0;
+        if(done < STATE_EXTRA_LEN && (flags & FEXTRA) != 0) state = STATE_EXTRA_LEN;
+        else if(done < STATE_NAME && (flags & FNAME) != 0) state = STATE_NAME;
+        else if(done < STATE_COMMENT && (flags & FCOMMENT) != 0) state = STATE_COMMENT;
+        else if(done < STATE_HCRC && (flags & FHCRC) != 0) state = STATE_HCRC;
+        else state = STATE_BODY;
+    }
+
+
+    /** Read a little-endian int from the field buffer. */
+    private int readInt(int pos) {
+        return (field[pos] & 0xFF) | (field[pos+1] & 0xFF) << 8
+               | (field[pos+2] & 0xFF) << 16 | (field[pos+3] & 0xFF) << 24;
+    }
+
+
+    /** Get a raw inflater from the pool, or create one if the pool is empty. */
+    private static Inflater obtain() {
+        synchronized(pool) {
+            int last = pool.size() - 1;
+            if(0 <= last) return pool.remove(last);
+        }
+        return new Inflater(true);
+    }
+
+
+    /** Return an inflater to the pool, or free it if the pool is full. */
+    private static void recycle(Inflater inflater) {
+        inflater.reset();
+        synchronized(pool) {
+            if(pool.size() < POOL_SIZE) {
+                pool.add(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+}
@@ -0,0 +1,398 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.graphics.Typeface;
+import android.text.Html;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ParagraphStyle;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.SubscriptSpan;
+import android.text.style.SuperscriptSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** Parses the common subset of html in one pass, giving the same text and spans as
+ *  {@link Html#fromHtml(String)} without starting its SAX parser.<br/>
+ *  <br/>
+ *  The tags handled are &lt;br&gt;, &lt;p&gt;, &lt;div&gt;, &lt;blockquote&gt;,
+ *  &lt;h1&gt; to &lt;h6&gt;, &lt;b&gt;, &lt;strong&gt;, &lt;i&gt;, &lt;em&gt;,
+ *  &lt;cite&gt;, &lt;dfn&gt;, &lt;u&gt;, &lt;big&gt;, &lt;small&gt;, &lt;tt&gt;,
+ *  &lt;sup&gt;, &lt;sub&gt; and &lt;a href&gt;, with the entities &amp;amp;,
+ *  &amp;lt;, &amp;gt;, &amp;quot;, &amp;nbsp; and numeric character references.
+ *  Anything else (other tags or attributes, comments, tags that are not closed in
+ *  order, blocks inside inline tags...) is left to the platform parser, which repairs
+ *  broken markup in ways this parser does not copy.
+ *  @author Mark Lauman */
+final class HtmlSubsetParser {
+
+    /** Tag kinds */
+    private static final int BR = 0, P = 1, DIV = 2, BLOCKQUOTE = 3, HEADER = 4, BOLD = 5,
+            ITALIC = 6, UNDERLINE = 7, BIG = 8, SMALL = 9, MONOSPACE = 10, SUPER = 11,
+            SUB = 12, LINK = 13;
+    /** Relative size of the text of &lt;h1&gt; to &lt;h6&gt;. Same as the platform's. */
+    private static final float[] HEADER_SIZES = {1.5f, 1.4f, 1.3f, 1.2f, 1.1f, 1f};
+    /** Kind of each tag in the subset, by name. */
+    private static final HashMap<String, Integer> KINDS = new HashMap<>();
+    /** Character of each named entity in the subset, by name. */
+    private static final HashMap<String, Character> ENTITIES = new HashMap<>();
+    static {
+        String[] names = {"br", "p", "div", "blockquote", "b", "strong", "i", "em", "cite",
+                          "dfn", "u", "big", "small", "tt", "sup", "sub", "a"};
+        int[] kinds = {BR, P, DIV, BLOCKQUOTE, BOLD, BOLD, ITALIC, ITALIC, ITALIC,
+                       ITALIC, UNDERLINE, BIG, SMALL, MONOSPACE, SUPER, SUB, LINK};
+        for(int i=0; i<names.length; i++)
+            KINDS.put(names[i], kinds[i]);
+        for(int i=1; i<=6; i++)
+            KINDS.put("h" + i, HEADER);
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("nbsp", '\u00A0');
+    }
+
+    /** The html being parsed. */
+    private final String html;
+    /** Position of the parser in {@link #html}. */
+    private int pos = 0;
+    /** End of the last entity read by {@link #entity(int)}. */
+    private int entityEnd = 0;
+    /** The text of the result. */
+    private final StringBuilder text;
+    /** Spans of the result, in the order the platform would set them. */
+    private final ArrayList<Object> spans = new ArrayList<>();
+    /** Start and end of each span in {@link #spans}. */
+    private final ArrayList<int[]> ranges = new ArrayList<>();
+
+    /** Names of the open tags. */
+    private String[] openNames = new String[8];
+    /** Kind of each open tag. */
+    private int[] openKinds = new int[8];
+    /** Offset in the text where each open tag started. */
+    private int[] openStarts = new int[8];
+    /** Number of open tags. */
+    private int openCount = 0;
+    /** Target of the open link. Null if there is none, or if it has no href. */
+    private String href = null;
+
+
+    private HtmlSubsetParser(String html) {
+        this.html = html;
+        text = new StringBuilder(html.length());
+    }
+
+
+    /** Parse an html string.
+     *  @param html The html.
+     *  @return The same text as {@link Html#fromHtml(String)}, or null if the html uses
+     *  markup this parser does not handle. */
+    static SpannableStringBuilder parse(String html) {
+        return new HtmlSubsetParser(html).run();
+    }
+
+
+    /** Parse the html.
+     *  @return The text, or null if the html is not in the subset. */
+    private SpannableStringBuilder run() {
+        int length = html.length();
+        while(pos < length) {
+            char c = html.charAt(pos);
+            if(c == '<') {
+                if(!tag()) return null;
+            } else if(c == '&') {
+                int ch = entity(pos);
+                if(ch < 0) return null;
+                character((char) ch);
+                pos = entityEnd;
+            } else {
+                // Other whitespace may be changed by the platform parser
+                if(c < ' ' && c != '\n') return null;
+                character(c);
+                pos++;
+            }
+        }
+        if(openCount != 0) return null;
+
+        SpannableStringBuilder res = new SpannableStringBuilder(text);
+        for(int i=0; i<spans.size(); i++) {
+            Object span = spans.get(i);
+            int start = ranges.get(i)[0];
+            int end = ranges.get(i)[1];
+            int flags = Spannable.SPAN_EXCLUSIVE_EXCLUSIVE;
+            if(span instanceof ParagraphStyle) {
+                // If the last line of the paragraph is blank, back off by one
+                if(2 <= end && text.charAt(end - 1) == '\n' && text.charAt(end - 2) == '\n')
+                    end--;
+                if(end == start) continue;
+                flags = Spanned.SPAN_PARAGRAPH;
+            }
+            res.setSpan(span, start, end, flags);
+        }
+        return res;
+    }
+
+
+    /** Add a character of text. Spaces and newlines are collapsed into one space,
+     *  which is dropped at the start of a line. */
+    private void character(char c) {
+        if(c != ' ' && c != '\n') {
+            text.append(c);
+            return;
+        }
+        int length = text.length();
+        char pred = length == 0 ? '\n' : text.charAt(length - 1);
+        if(pred != ' ' && pred != '\n') text.append(' ');
+    }
+
+
+    /** Read the tag at {@link #pos}.
+     *  @return False if it is not in the subset. */
+    private boolean tag() {
+        int length = html.length();
+        pos++;
+        boolean close = pos < length && html.charAt(pos) == '/';
+        if(close) pos++;
+        StringBuilder nameBuilder = new StringBuilder(10);
+        while(pos < length) {
+            char c = html.charAt(pos);
+            if('A' <= c && c <= 'Z') c += 'a' - 'A';
+            else if((c < 'a' || 'z' < c) && (c < '0' || '9' < c)) break;
+            nameBuilder.append(c);
+            pos++;
+        }
+        // Comments, doctypes and stray '<' are left to the platform
+        String name = nameBuilder.toString();
+        Integer kindValue = KINDS.get(name);
+        if(kindValue == null) return false;
+        int kind = kindValue;
+
+        String link = null;
+        boolean hasHref = false;
+        while(true) {
+            while(pos < length && isSpace(html.charAt(pos)))
+                pos++;
+            if(length <= pos) return false;
+            char c = html.charAt(pos);
+            if(c == '>') {
+                pos++;
+                break;
+            }
+            if(c == '/') {
+                if(kind != BR || close || length <= pos + 1 || html.charAt(pos + 1) != '>')
+                    return false;
+                pos += 2;
+                break;
+            }
+            // The only attribute read is the href of a link
+            if(close || kind != LINK || hasHref || !html.startsWith("href", pos))
+                return false;
+            pos += 4;
+            while(pos < length && isSpace(html.charAt(pos)))
+                pos++;
+            if(length <= pos || html.charAt(pos) != '=') return false;
+            pos++;
+            while(pos < length && isSpace(html.charAt(pos)))
+                pos++;
+            if(length <= pos) return false;
+            char quote = html.charAt(pos);
+            if(quote != '"' && quote != '\'') return false;
+            int end = html.indexOf(quote, pos + 1);
+            if(end < 0) return false;
+            link = attribute(pos + 1, end);
+            if(link == null) return false;
+            hasHref = true;
+            pos = end + 1;
+            if(pos < length && !isSpace(html.charAt(pos)) && html.charAt(pos) != '>')
+                return false;
+        }
+        return close ? closeTag(kind, name) : openTag(kind, name, link);
+    }
+
+
+    /** Handle the start of a tag.
+     *  @return False if it is not in the subset. */
+    private boolean openTag(int kind, String name, String link) {
+        switch(kind) {
+            case BR:
+                text.append('\n');
+                return true;
+            case P: case DIV: case BLOCKQUOTE: case HEADER:
+                // The platform parser closes inline tags (and paragraphs) around blocks
+                for(int i=0; i<openCount; i++)
+                    if(openKinds[i] != DIV && openKinds[i] != BLOCKQUOTE) return false;
+                paragraph();
+                break;
+            case LINK:
+                for(int i=0; i<openCount; i++)
+                    if(openKinds[i] == LINK) return false;
+                href = link;
+                break;
+        }
+        if(openCount == openNames.length) {
+            openNames = Utils.copyOf(openNames, openCount * 2);
+            openKinds = Utils.copyOf(openKinds, openCount * 2);
+            openStarts = Utils.copyOf(openStarts, openCount * 2);
+        }
+        openNames[openCount] = name;
+        openKinds[openCount] = kind;
+        openStarts[openCount] = text.length();
+        openCount++;
+        return true;
+    }
+
+
+    /** Handle the end of a tag.
+     *  @return False if it is not in the subset. */
+    private boolean closeTag(int kind, String name) {
+        if(kind == BR || openCount == 0 || !openNames[openCount - 1].equals(name))
+            return false;
+        openCount--;
+        openNames[openCount] = null;
+        int where = openStarts[openCount];
+        switch(kind) {
+            case P: case DIV:
+                paragraph();
+                break;
+            case BLOCKQUOTE:
+                paragraph();
+                span(new QuoteSpan(), where, text.length());
+                break;
+            case HEADER:
+                // Platform versions disagree on whether trailing newlines are styled
+                int end = text.length();
+                if(where != end && text.charAt(end - 1) == '\n') return false;
+                paragraph();
+                span(new RelativeSizeSpan(HEADER_SIZES[name.charAt(1) - '1']), where, end);
+                span(new StyleSpan(Typeface.BOLD), where, end);
+                break;
+            case BOLD:
+                span(new StyleSpan(Typeface.BOLD), where, text.length());
+                break;
+            case ITALIC:
+                span(new StyleSpan(Typeface.ITALIC), where, text.length());
+                break;
+            case UNDERLINE:
+                span(new UnderlineSpan(), where, text.length());
+                break;
+            case BIG:
+                span(new RelativeSizeSpan(1.25f), where, text.length());
+                break;
+            case SMALL:
+                span(new RelativeSizeSpan(0.8f), where, text.length());
+                break;
+            case MONOSPACE:
+                span(new TypefaceSpan("monospace"), where, text.length());
+                break;
+            case SUPER:
+                span(new SuperscriptSpan(), where, text.length());
+                break;
+            case SUB:
+                span(new SubscriptSpan(), where, text.length());
+                break;
+            case LINK:
+                if(href != null) span(new URLSpan(href), where, text.length());
+                href = null;
+                break;
+        }
+        return true;
+    }
+
+
+    /** Start or end a paragraph, so it is followed by one blank line. */
+    private void paragraph() {
+        int length = text.length();
+        if(length == 0) return;
+        if(text.charAt(length - 1) != '\n') text.append("\n\n");
+        else if(length < 2 || text.charAt(length - 2) != '\n') text.append('\n');
+    }
+
+
+    /** Add a span to the result, unless it is empty. */
+    private void span(Object span, int start, int end) {
+        if(start == end) return;
+        spans.add(span);
+        ranges.add(new int[] {start, end});
+    }
+
+
+    /** Decode the value of an attribute.
+     *  @return The value, or null if it is not in the subset. */
+    private String attribute(int start, int end) {
+        StringBuilder res = new StringBuilder(end - start);
+        int i = start;
+        while(i < end) {
+            char c = html.charAt(i);
+            // Whitespace in attributes may be changed by the platform parser
+            if(c <= ' ') return null;
+            if(c != '&') {
+                res.append(c);
+                i++;
+                continue;
+            }
+            int ch = entity(i);
+            if(ch < 0 || end < entityEnd) return null;
+            res.append((char) ch);
+            i = entityEnd;
+        }
+        return res.toString();
+    }
+
+
+    /** Read the entity starting at an offset, and set {@link #entityEnd} to its end.
+     *  @return The character, or -1 if the entity is not in the subset. */
+    private int entity(int start) {
+        int semi = html.indexOf(';', start);
+        if(semi < 0 || 12 < semi - start) return -1;
+        entityEnd = semi + 1;
+        if(start + 1 < semi && html.charAt(start + 1) == '#') {
+            int radix = 10;
+            int digits = start + 2;
+            if(digits < semi && (html.charAt(digits) | 0x20) == 'x') {
+                radix = 16;
+                digits++;
+            }
+            if(digits == semi) return -1;
+            int res = 0;
+            for(int i=digits; i<semi; i++) {
+                char c = html.charAt(i);
+                int digit = c < 0x80 ? Character.digit(c, radix) : -1;
+                if(digit < 0) return -1;
+                res = res * radix + digit;
+                if(0xFFFF < res) return -1;
+            }
+            // Control characters and code points the parser may remap are not in the subset
+            if(res < ' ' || ('~' < res && res < 0xA0) || (0xD800 <= res && res < 0xE000)
+                    || 0xFFFD < res)
+                return -1;
+            return res;
+        }
+        Character res = ENTITIES.get(html.substring(start + 1, semi));
+        return res == null ? -1 : res;
+    }
+
+
+    /** Check for the whitespace allowed inside tags. */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
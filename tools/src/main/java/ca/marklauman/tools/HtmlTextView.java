@@ -4,6 +4,7 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.os.Build;
 import android.text.Html;
+import android.text.Spanned;
 import android.util.AttributeSet;
 import android.widget.TextView;
 
@@ -35,11 +36,18 @@ public class HtmlTextView extends TextView {
 
     /** Set the text of this TextView to an html string */
     public void setHtml(CharSequence text) {
-        setText(Html.fromHtml(""+text));
+        setText(fromHtml(""+text));
     }
 
     /** Set the text of this TextView to an html string */
     public void setHtml(int textResource) {
-        setText(Html.fromHtml(getContext().getString(textResource)));
+        setText(fromHtml(getContext().getString(textResource)));
+    }
+
+    /** Parse an html string. The common tags are parsed by {@link HtmlSubsetParser},
+     *  and anything else by {@link Html#fromHtml(String)}. */
+    private static Spanned fromHtml(String html) {
+        Spanned res = HtmlSubsetParser.parse(html);
+        return res != null ? res : Html.fromHtml(html);
     }
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Drawable.ConstantState;
+import android.os.Process;
+import android.support.v4.content.ContextCompat;
+
+import java.util.AbstractList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** A list of drawables that are only loaded when they are first needed.
+ *  Use this instead of {@link Utils#getDrawableArray(Context, int)} for long lists
+ *  where only a few icons are on screen at once.<br/>
+ *  <br/>
+ *  Call {@link #moveTo(int)} as the list scrolls. Drawables ahead of the position are
+ *  loaded on a background thread, and drawables far from it are released.
+ *  Every call to {@link #get(int)} returns a new drawable sharing its bitmap with the
+ *  others loaded from the same entry, so call {@link Drawable#mutate()} before
+ *  changing one. On Lollipop and up, they are styled by the theme of the
+ *  list's context, including the ones loaded ahead on the background thread.
+ *  @author Mark Lauman */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class LazyDrawableList extends AbstractList<Drawable> {
+
+    /** Default number of drawables loaded ahead of the position. */
+    public static final int DEFAULT_PREFETCH = 10;
+    /** Default distance from the position at which drawables are released. */
+    public static final int DEFAULT_KEEP = 50;
+
+    /** Loads drawables in the background for every list. */
+    private static ExecutorService loader;
+
+    /** The context the drawables are loaded from. */
+    private final Context context;
+    /** Resource ids of the drawables. */
+    private final int[] ids;
+    /** Constant states of the loaded drawables. Null if an entry is not loaded. */
+    private final AtomicReferenceArray<ConstantState> states;
+    /** Incremented each time the position changes, to cancel outdated prefetches. */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /** Number of drawables loaded ahead of the position. */
+    private int prefetch = DEFAULT_PREFETCH;
+    /** Distance from the position at which drawables are released. */
+    private int keep = DEFAULT_KEEP;
+
+
+    /** Create a list of drawables.
+     *  @param c The context used to load the drawables.
+     *  @param ids The resource ids of the drawables. Entries of 0 have no drawable. */
+    public LazyDrawableList(Context c, int[] ids) {
+        context = c;
+        this.ids = ids;
+        states = new AtomicReferenceArray<>(ids.length);
+    }
+
+
+    /** Set how far ahead of the position drawables are loaded,
+     *  and how far away they can be before they are released.
+     *  @param prefetch Number of drawables loaded ahead of the position.
+     *  @param keep Drawables further than this from the position are released.
+     *              Must be at least {@code prefetch}. */
+    public void setWindow(int prefetch, int keep) {
+        if(prefetch < 0 || keep < prefetch)
+            throw new IllegalArgumentException("Invalid window " + prefetch + ", " + keep);
+        this.prefetch = prefetch;
+        this.keep = keep;
+    }
+
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+
+    /** Get the drawable at this position, loading it if needed.
+     *  @param location The index of the drawable.
+     *  @return A new drawable, or null if that entry has no drawable. */
+    @Override
+    public Drawable get(int location) {
+        ConstantState state = states.get(location);
+        if(state != null) return ResourceCache.newDrawable(state, context);
+        if(ids[location] == 0) return null;
+
+        Drawable res = ContextCompat.getDrawable(context, ids[location]);
+        if(res != null) states.compareAndSet(location, null, res.getConstantState());
+        return res;
+    }
+
+
+    /** Check if the drawable at this position is loaded. */
+    public boolean isLoaded(int location) {
+        return states.get(location) != null;
+    }
+
+
+    /** Tell the list which position is now on screen. Prefetches the drawables
+     *  ahead of it and releases the ones that are far away.
+     *  @param position The first visible position. */
+    public void moveTo(int position) {
+        release(position, keep);
+        prefetch(position, prefetch);
+    }
+
+
+    /** Load drawables on a background thread. Any earlier prefetch that is still
+     *  running is cancelled.
+     *  @param position The first position to load.
+     *  @param count The number of positions to load. */
+    public void prefetch(final int position, final int count) {
+        final int gen = generation.incrementAndGet();
+        final int end = Math.min(ids.length, position + count);
+        if(end <= position) return;
+        getLoader().execute(new Runnable() {
+            @Override
+            public void run() {
+                for(int i=Math.max(0, position); i<end; i++) {
+                    if(generation.get() != gen) return;
+                    if(ids[i] == 0 || states.get(i) != null) continue;
+                    Drawable d = ContextCompat.getDrawable(context, ids[i]);
+                    if(d != null) states.compareAndSet(i, null, d.getConstantState());
+                }
+            }
+        });
+    }
+
+
+    /** Release the drawables that are far from a position, so their memory may be
+     *  reclaimed once nothing else uses them. They are loaded again if needed.
+     *  @param position The position to measure from.
+     *  @param distance Drawables further than this from {@code position} are released. */
+    public void release(int position, int distance) {
+        int start = Math.max(0, position - distance);
+        int end = Math.min(ids.length, position + distance + 1);
+        for(int i=0; i<start; i++)
+            states.set(i, null);
+        for(int i=end; i<ids.length; i++)
+            states.set(i, null);
+    }
+
+
+    /** Get the executor used to load drawables, creating it if needed. */
+    private static synchronized ExecutorService getLoader() {
+        if(loader == null) loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "LazyDrawableList");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        return loader;
+    }
+}
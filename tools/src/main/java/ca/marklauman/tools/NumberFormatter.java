@@ -0,0 +1,394 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/** Formats numbers without the garbage of {@link String#format(String, Object...)}.
+ *  Digits are written straight into a buffer owned by the formatter, so formatting a
+ *  number allocates nothing but the resulting String (and nothing at all when
+ *  appending to a {@link StringBuilder}).<br/>
+ *  <br/>
+ *  Rounding is exact: a value is rounded based on the double it really is, not on
+ *  an approximation of it multiplied by a power of ten. Halves round away from zero,
+ *  like {@code String.format("%.2f")}.<br/>
+ *  <br/>
+ *  A formatter is not thread safe. Use one per thread (or per view).
+ *  @author Mark Lauman */
+@SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+public class NumberFormatter {
+
+    /** Maximum number of decimal places supported. */
+    public static final int MAX_PLACES = 15;
+
+    /** Powers of ten that are exact as doubles. */
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    /** Powers of ten as longs, up to {@link #MAX_PLACES}. */
+    private static final long[] LONG_POW10 = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+            1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+            100000000000000L, 1000000000000000L};
+    /** 2<sup>52</sup>. Doubles at or above this are whole numbers. */
+    private static final double TWO_52 = 4503599627370496.0;
+    /** 2<sup>63</sup>. Doubles at or above this do not fit in a long. */
+    private static final double TWO_63 = 9223372036854775808.0;
+    /** Splits a double into two halves for exact multiplication (2<sup>27</sup> + 1). */
+    private static final double SPLITTER = 134217729.0;
+    /** Room in the buffer for the longest number, without currency symbols.
+     *  {@link Double#MAX_VALUE} has 309 digits, plus a sign, a point and 15 places. */
+    private static final int NUMBER_SIZE = 328;
+
+    /** Holds the characters of the number being formatted. */
+    private char[] buffer;
+    /** Character placed between the whole and fractional parts. */
+    private char decimal = '.';
+    /** Character placed between groups of digits, or 0 to not group digits. */
+    private char grouping = 0;
+    /** Number of digits in each group. */
+    private int groupSize = 3;
+    /** Text placed before a currency amount. */
+    private String currencyPrefix = "$";
+    /** Text placed after a currency amount. */
+    private String currencySuffix = "";
+    /** Number of decimal places in a currency amount. */
+    private int currencyPlaces = 2;
+
+
+    /** Create a formatter using '.' as a decimal separator and no digit grouping.
+     *  Currency amounts are shown in dollars. */
+    public NumberFormatter() {
+        buffer = new char[NUMBER_SIZE + currencyPrefix.length() + currencySuffix.length()];
+    }
+
+
+    /** Create a formatter using the separators and currency of a locale.
+     *  @param locale The locale to format numbers for. */
+    public NumberFormatter(Locale locale) {
+        DecimalFormatSymbols symbols = new DecimalFormatSymbols(locale);
+        decimal = symbols.getDecimalSeparator();
+        grouping = symbols.getGroupingSeparator();
+
+        NumberFormat currency = NumberFormat.getCurrencyInstance(locale);
+        if(currency instanceof DecimalFormat) {
+            DecimalFormat df = (DecimalFormat) currency;
+            currencyPrefix = df.getPositivePrefix();
+            currencySuffix = df.getPositiveSuffix();
+        }
+        currencyPlaces = Math.min(MAX_PLACES, currency.getMaximumFractionDigits());
+        buffer = new char[NUMBER_SIZE + currencyPrefix.length() + currencySuffix.length()];
+    }
+
+
+    /** Set the character placed between the whole and fractional parts of a number.
+     *  @return This formatter, for chaining. */
+    public NumberFormatter setDecimalSeparator(char separator) {
+        decimal = separator;
+        return this;
+    }
+
+
+    /** Set the character placed between groups of digits.
+     *  @param separator The separator, or 0 to stop grouping digits.
+     *  @return This formatter, for chaining. */
+    public NumberFormatter setGroupingSeparator(char separator) {
+        grouping = separator;
+        return this;
+    }
+
+
+    /** Set the number of digits in each group. Defaults to 3.
+     *  @return This formatter, for chaining. */
+    public NumberFormatter setGroupingSize(int size) {
+        if(size < 1) throw new IllegalArgumentException("Group size must be positive");
+        groupSize = size;
+        return this;
+    }
+
+
+    /** Set how currency amounts are displayed.
+     *  @param prefix Text placed before the amount (such as "$"). Null for none.
+     *  @param suffix Text placed after the amount (such as " €"). Null for none.
+     *  @param places Number of decimal places in an amount.
+     *  @return This formatter, for chaining. */
+    public NumberFormatter setCurrency(String prefix, String suffix, int places) {
+        checkPlaces(places);
+        currencyPrefix = prefix == null ? "" : prefix;
+        currencySuffix = suffix == null ? "" : suffix;
+        currencyPlaces = places;
+        buffer = new char[NUMBER_SIZE + currencyPrefix.length() + currencySuffix.length()];
+        return this;
+    }
+
+
+    /** Format a whole number, grouping its digits if grouping is enabled. */
+    public String format(long value) {
+        int end = buffer.length;
+        int start = writeNumber(value, 0, end);
+        return new String(buffer, start, end - start);
+    }
+
+
+    /** Format a number with a fixed number of decimal places.
+     *  @param value The number to format.
+     *  @param places The number of digits after the decimal point. */
+    public String format(double value, int places) {
+        int end = buffer.length;
+        int start = writeFixed(value, places, end);
+        return new String(buffer, start, end - start);
+    }
+
+
+    /** Format a currency amount.
+     *  @param amount The amount, in whole units of the currency (dollars, not cents). */
+    public String formatCurrency(double amount) {
+        int end = buffer.length;
+        int start = writeCurrency(amount, end);
+        return new String(buffer, start, end - start);
+    }
+
+
+    /** Format a currency amount held in the currency's smallest unit.
+     *  @param minorUnits The amount in minor units (cents, not dollars). */
+    public String formatCurrency(long minorUnits) {
+        int end = buffer.length;
+        int start = writeCurrency(minorUnits, end);
+        return new String(buffer, start, end - start);
+    }
+
+
+    /** Append a whole number to a StringBuilder.
+     *  @return {@code out}, for chaining. */
+    public StringBuilder append(StringBuilder out, long value) {
+        int end = buffer.length;
+        int start = writeNumber(value, 0, end);
+        return out.append(buffer, start, end - start);
+    }
+
+
+    /** Append a number with a fixed number of decimal places to a StringBuilder.
+     *  @return {@code out}, for chaining. */
+    public StringBuilder append(StringBuilder out, double value, int places) {
+        int end = buffer.length;
+        int start = writeFixed(value, places, end);
+        return out.append(buffer, start, end - start);
+    }
+
+
+    /** Append a currency amount to a StringBuilder.
+     *  @param amount The amount, in whole units of the currency.
+     *  @return {@code out}, for chaining. */
+    public StringBuilder appendCurrency(StringBuilder out, double amount) {
+        int end = buffer.length;
+        int start = writeCurrency(amount, end);
+        return out.append(buffer, start, end - start);
+    }
+
+
+    /** Write a fixed point number into the end of the buffer.
+     *  @param end The position just after the last character to write.
+     *  @return The position of the first character written. */
+    private int writeFixed(double value, int places, int end) {
+        checkPlaces(places);
+        double abs = Math.abs(value);
+        if(!(abs < TWO_63)) {
+            // NaN, infinite, or too large to have any meaningful decimal digits
+            String text = Double.isNaN(value) || Double.isInfinite(value)
+                          ? String.valueOf(value)
+                          : String.format(Locale.ROOT, "%." + places + "f", value);
+            int start = end - text.length();
+            text.getChars(0, text.length(), buffer, start);
+            return start;
+        }
+
+        // Split into whole and fraction. Both parts are exact.
+        long whole = (long) abs;
+        long fraction = roundScaled(abs - whole, places, true);
+        if(fraction == LONG_POW10[places]) {
+            whole++;
+            fraction = 0;
+        }
+        boolean negative = value < 0 && (whole != 0 || fraction != 0);
+        return writeDigits(whole, fraction, negative, places, end);
+    }
+
+
+    /** Write a currency amount into the end of the buffer.
+     *  @param end The position just after the last character to write.
+     *  @return The position of the first character written. */
+    private int writeCurrency(double amount, int end) {
+        int numberEnd = end - currencySuffix.length();
+        currencySuffix.getChars(0, currencySuffix.length(), buffer, numberEnd);
+        int pos = writeFixed(Math.abs(amount), currencyPlaces, numberEnd);
+        return writePrefix(amount < 0 && !isZero(pos, numberEnd), pos);
+    }
+
+
+    /** Write a currency amount held in minor units into the end of the buffer.
+     *  @param end The position just after the last character to write.
+     *  @return The position of the first character written. */
+    private int writeCurrency(long minorUnits, int end) {
+        int pos = end - currencySuffix.length();
+        currencySuffix.getChars(0, currencySuffix.length(), buffer, pos);
+        // Work with negative numbers so Long.MIN_VALUE is handled.
+        long n = minorUnits < 0 ? minorUnits : -minorUnits;
+        long scale = LONG_POW10[currencyPlaces];
+        long whole = n / scale;
+        pos = writeNegatives(whole, n - whole * scale, false, currencyPlaces, pos);
+        return writePrefix(minorUnits < 0, pos);
+    }
+
+
+    /** Write the currency prefix (and a minus sign) before a currency amount.
+     *  @param negative True if the amount is negative.
+     *  @param pos The position of the amount's first character.
+     *  @return The position of the first character written. */
+    private int writePrefix(boolean negative, int pos) {
+        pos -= currencyPrefix.length();
+        currencyPrefix.getChars(0, currencyPrefix.length(), buffer, pos);
+        if(negative) buffer[--pos] = '-';
+        return pos;
+    }
+
+
+    /** Check if the digits in a range of the buffer are all zero. */
+    private boolean isZero(int start, int end) {
+        for(int i=start; i<end; i++) {
+            char c = buffer[i];
+            if('1' <= c && c <= '9') return false;
+        }
+        return true;
+    }
+
+
+    /** Write a long as a fixed point number into the end of the buffer.
+     *  @param value The number, scaled up by 10<sup>places</sup>.
+     *  @param places The number of decimal places in the value.
+     *  @param end The position just after the last character to write.
+     *  @return The position of the first character written. */
+    private int writeNumber(long value, int places, int end) {
+        // Work with negative numbers so Long.MIN_VALUE is handled.
+        long n = value < 0 ? value : -value;
+        long scale = LONG_POW10[places];
+        long whole = n / scale;
+        return writeNegatives(whole, n - whole * scale, value < 0, places, end);
+    }
+
+
+    /** Write a fixed point number from its whole and fractional parts.
+     *  Both parts must be zero or positive. */
+    private int writeDigits(long whole, long fraction, boolean negative, int places, int end) {
+        return writeNegatives(-whole, -fraction, negative, places, end);
+    }
+
+
+    /** Write a fixed point number from its negated whole and fractional parts.
+     *  @param whole The whole part, zero or negative.
+     *  @param fraction The fractional part scaled to {@code places} digits, zero or negative.
+     *  @param negative True to write a minus sign.
+     *  @param places The number of digits after the decimal point.
+     *  @param end The position just after the last character to write.
+     *  @return The position of the first character written. */
+    private int writeNegatives(long whole, long fraction, boolean negative, int places, int end) {
+        int pos = end;
+        if(0 < places) {
+            for(int i=0; i<places; i++) {
+                buffer[--pos] = (char) ('0' - fraction % 10);
+                fraction /= 10;
+            }
+            buffer[--pos] = decimal;
+        }
+        int digits = 0;
+        do {
+            if(grouping != 0 && digits != 0 && digits % groupSize == 0)
+                buffer[--pos] = grouping;
+            buffer[--pos] = (char) ('0' - whole % 10);
+            whole /= 10;
+            digits++;
+        } while(whole != 0);
+        if(negative) buffer[--pos] = '-';
+        return pos;
+    }
+
+
+    /** Check that a number of decimal places is supported. */
+    private static void checkPlaces(int places) {
+        if(places < 0 || MAX_PLACES < places)
+            throw new IllegalArgumentException("Decimal places must be between 0 and "
+                                               + MAX_PLACES);
+    }
+
+
+    /** Round a number to a given number of places.
+     *  The rounding is based on the exact value of the double.
+     *  @param number The number to round.
+     *  @param places The number of decimal places to keep, from 0 to 22.
+     *  @return The closest double to the rounded number. Halves round up. */
+    static double round(double number, int places) {
+        double pow = POW10[places];
+        double abs = Math.abs(number);
+        if(!(abs * pow < TWO_52)) {
+            if(!(abs < TWO_52)) return number; // Already whole, infinite or NaN
+            // Too close to the precision of a double to round quickly. Rare.
+            return new BigDecimal(number).setScale(places, 0 <= number ? RoundingMode.HALF_UP
+                                                                       : RoundingMode.HALF_DOWN)
+                                         .doubleValue();
+        }
+        long scaled = roundScaled(abs, places, 0 <= number);
+        return (number < 0 ? -scaled : scaled) / pow;
+    }
+
+
+    /** Check if {@link #round(double, int)} supports a number of places. */
+    static boolean canRound(int places) {
+        return 0 <= places && places < POW10.length;
+    }
+
+
+    /** Multiply a positive number by a power of ten and round it to a whole number.
+     *  The product must be below 2<sup>52</sup>.
+     *  @param value The number to scale, zero or positive.
+     *  @param places The power of ten to multiply by.
+     *  @param halfUp True if an exact half rounds up, false if it rounds down.
+     *  @return The rounded product. */
+    private static long roundScaled(double value, int places, boolean halfUp) {
+        double pow = POW10[places];
+        double product = value * pow;
+        double error = productError(value, pow, product);
+        double floor = Math.floor(product);
+        // Exact, as both are multiples of the product's ulp.
+        double half = (product - floor) - 0.5;
+        boolean up = 0 < half || (half == 0 && (0 < error || (error == 0 && halfUp)));
+        return (long) floor + (up ? 1 : 0);
+    }
+
+
+    /** Dekker's exact product: the error in {@code product}, which is {@code a * b}
+     *  rounded to a double. {@code product + error} is exactly {@code a * b}. */
+    private static double productError(double a, double b, double product) {
+        double t = SPLITTER * a;
+        double aHigh = t - (t - a);
+        double aLow = a - aHigh;
+        t = SPLITTER * b;
+        double bHigh = t - (t - b);
+        double bLow = b - bHigh;
+        return ((aHigh * bHigh - product) + aHigh * bLow + aLow * bHigh) + aLow * bLow;
+    }
+}
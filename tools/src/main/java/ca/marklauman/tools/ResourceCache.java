@@ -0,0 +1,285 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Drawable.ConstantState;
+import android.os.Build;
+import android.support.v4.content.ContextCompat;
+import android.util.SparseArray;
+
+import java.util.Locale;
+
+/** Process-wide cache of the arrays loaded by {@link Utils#getResourceArray(Context, int)},
+ *  {@link Utils#getDrawableArray(Context, int)} and {@link #getIntArray(Context, int)}.
+ *  Once an array is loaded, later requests for it do no {@link TypedArray} work.<br/>
+ *  <br/>
+ *  The cache holds the values for one configuration (density, night mode and locale)
+ *  at a time. It is emptied whenever the configuration changes, or when the system
+ *  runs low on memory. Drawables are cached as their {@link ConstantState}, so every
+ *  drawable handed out shares its bitmap with the others. Call
+ *  {@link Drawable#mutate()} before changing one of them. On Lollipop and up, each
+ *  drawable is given the theme of the context it was requested from.<br/>
+ *  <br/>
+ *  Arrays can also be compiled into tables at build time by applying
+ *  {@code resource-tables.gradle} to a module. The generated class
+ *  ({@code GeneratedResourceTables} in the module's package) of an application module
+ *  is installed automatically, even if the application id is not the module's package.
+ *  The tables of library modules are installed by calling their {@code install()}
+ *  method. Arrays in those tables are never loaded from the resources at all, so
+ *  tables built in a library ignore any array the application overrides. Do not
+ *  install them for arrays an application may override.
+ *  @author Mark Lauman */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public abstract class ResourceCache {
+
+    /** Guards all the fields below. */
+    private static final Object lock = new Object();
+    /** Name of the class generated by {@code resource-tables.gradle}. */
+    private static final String TABLES_CLASS = "GeneratedResourceTables";
+
+    /** Resource arrays compiled at build time. Not tied to any configuration. */
+    private static final SparseArray<int[]> resourceTables = new SparseArray<>();
+    /** Integer arrays compiled at build time. Not tied to any configuration. */
+    private static final SparseArray<int[]> intTables = new SparseArray<>();
+    /** Cached results of {@link #getResourceArray(Context, int)}. */
+    private static final SparseArray<int[]> resourceArrays = new SparseArray<>();
+    /** Cached results of {@link #getIntArray(Context, int)}. */
+    private static final SparseArray<int[]> intArrays = new SparseArray<>();
+    /** Constant states of the drawables loaded by {@link #getDrawableArray(Context, int)}.
+     *  Drawables without a constant state have a null entry. */
+    private static final SparseArray<ConstantState[]> drawableArrays = new SparseArray<>();
+
+    /** Screen density of the cached values. */
+    private static int density = 0;
+    /** Night mode of the cached values. */
+    private static int nightMode = 0;
+    /** Locale of the cached values. */
+    private static Locale locale = null;
+    /** True once the cache is listening for configuration changes. */
+    private static boolean watching = false;
+
+
+    /** Retrieve an array of resource ids from the xml of the provided {@link Context}.
+     *  @param c The {@code Context} to search for the array.
+     *  @param resourceId The resource id of an {@code <array>} containing a list of resources.
+     *  @return The resource ids in the array, in the order in which they appear in the xml.
+     *  Returns null if the array does not exist. The array returned is a copy,
+     *  and may be modified. */
+    public static int[] getResourceArray(Context c, int resourceId) {
+        int[] res;
+        synchronized(lock) {
+            checkConfiguration(c);
+            res = resourceTables.get(resourceId);
+            if(res == null) res = resourceArrays.get(resourceId);
+        }
+        if(res == null) {
+            res = loadResourceArray(c.getResources(), resourceId);
+            if(res == null) return null;
+            synchronized(lock) {
+                resourceArrays.put(resourceId, res);
+            }
+        }
+        return res.clone();
+    }
+
+
+    /** Retrieve an {@code <integer-array>} from the xml of the provided {@link Context}.
+     *  @param c The {@code Context} to search for the array.
+     *  @param resourceId The resource id of the array.
+     *  @return The integers in the array. The array returned is a copy, and may be modified. */
+    public static int[] getIntArray(Context c, int resourceId) {
+        int[] res;
+        synchronized(lock) {
+            checkConfiguration(c);
+            res = intTables.get(resourceId);
+            if(res == null) res = intArrays.get(resourceId);
+        }
+        if(res == null) {
+            res = c.getResources().getIntArray(resourceId);
+            synchronized(lock) {
+                intArrays.put(resourceId, res);
+            }
+        }
+        return res.clone();
+    }
+
+
+    /** Retrieve an array of drawable resources from the xml of the provided {@link Context}.
+     *  @param c The {@code Context} to search for the array.
+     *  @param resourceId The resource id of an {@code <array>} containing a list of resources.
+     *  @return New drawables for every item in the array, in the order in which they
+     *  appear in the xml. Returns null if the array does not exist. */
+    public static Drawable[] getDrawableArray(Context c, int resourceId) {
+        int[] ids = getResourceArray(c, resourceId);
+        if(ids == null) return null;
+
+        ConstantState[] states;
+        synchronized(lock) {
+            states = drawableArrays.get(resourceId);
+        }
+        if(states != null) {
+            Drawable[] drawables = new Drawable[ids.length];
+            for(int i=0; i<ids.length; i++) {
+                if(states[i] != null) drawables[i] = newDrawable(states[i], c);
+                else drawables[i] = ContextCompat.getDrawable(c, ids[i]);
+            }
+            return drawables;
+        }
+
+        // First time this array is loaded
+        Drawable[] drawables = new Drawable[ids.length];
+        states = new ConstantState[ids.length];
+        for(int i=0; i<ids.length; i++) {
+            drawables[i] = ContextCompat.getDrawable(c, ids[i]);
+            if(drawables[i] != null) states[i] = drawables[i].getConstantState();
+        }
+        synchronized(lock) {
+            drawableArrays.put(resourceId, states);
+        }
+        return drawables;
+    }
+
+
+    /** Create a drawable from a cached constant state, styled by the theme of
+     *  a context on Lollipop and up (as {@link ContextCompat#getDrawable} would).
+     *  @param state The constant state of the drawable.
+     *  @param c The context requesting the drawable. */
+    static Drawable newDrawable(ConstantState state, Context c) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            return newThemedDrawable(state, c);
+        return state.newDrawable(c.getResources());
+    }
+
+
+    /** Create a drawable styled by the theme of a context. */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static Drawable newThemedDrawable(ConstantState state, Context c) {
+        return state.newDrawable(c.getResources(), c.getTheme());
+    }
+
+
+    /** Install arrays that were compiled at build time. Called by the classes generated
+     *  by {@code resource-tables.gradle}. Only arrays that are the same in every
+     *  configuration may be installed, as these are never cleared.
+     *  @param resourceIds Resource ids of the {@code <array>}s.
+     *  @param resourceValues The resource ids in each {@code <array>}.
+     *  @param intIds Resource ids of the {@code <integer-array>}s.
+     *  @param intValues The values in each {@code <integer-array>}. */
+    public static void install(int[] resourceIds, int[][] resourceValues,
+                               int[] intIds, int[][] intValues) {
+        synchronized(lock) {
+            for(int i=0; i<resourceIds.length; i++)
+                resourceTables.put(resourceIds[i], resourceValues[i]);
+            for(int i=0; i<intIds.length; i++)
+                intTables.put(intIds[i], intValues[i]);
+        }
+    }
+
+
+    /** Remove every value from the cache. Arrays compiled at build time are kept. */
+    public static void clear() {
+        synchronized(lock) {
+            resourceArrays.clear();
+            intArrays.clear();
+            drawableArrays.clear();
+        }
+    }
+
+
+    /** Read an array of resource ids without using the cache.
+     *  @param res The resources containing the array.
+     *  @param resourceId The resource id of the array.
+     *  @return The resource ids in the array, or null if there is no array. */
+    static int[] loadResourceArray(Resources res, int resourceId) {
+        TypedArray ta = res.obtainTypedArray(resourceId);
+        if(ta == null) return null;
+
+        int[] ids = new int[ta.length()];
+        for(int i=0; i<ids.length; i++)
+            ids[i] = ta.getResourceId(i, 0);
+
+        ta.recycle();
+        return ids;
+    }
+
+
+    /** Empty the cache if the configuration is not the one the cache was filled under,
+     *  and start listening for configuration changes. Must hold {@link #lock}.
+     *  @param c Context providing the current configuration. */
+    private static void checkConfiguration(Context c) {
+        if(!watching) {
+            watching = true;
+            installGenerated(c.getPackageName());
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+                watchConfiguration(c.getApplicationContext());
+        }
+
+        Resources res = c.getResources();
+        Configuration config = res.getConfiguration();
+        int newDensity = res.getDisplayMetrics().densityDpi;
+        int newNight = config.uiMode & Configuration.UI_MODE_NIGHT_MASK;
+        Locale newLocale = config.locale;
+        if(newDensity == density && newNight == nightMode
+                && (newLocale == null ? locale == null : newLocale.equals(locale)))
+            return;
+
+        resourceArrays.clear();
+        intArrays.clear();
+        drawableArrays.clear();
+        density = newDensity;
+        nightMode = newNight;
+        locale = newLocale;
+    }
+
+
+    /** Install the tables generated for a package, if there are any. For the
+     *  application id, resource-tables.gradle generates a class that installs the tables
+     *  of the manifest package when the two are not the same.
+     *  @param packageName The package containing the generated class. */
+    private static void installGenerated(String packageName) {
+        try {
+            Class.forName(packageName + "." + TABLES_CLASS)
+                 .getMethod("install")
+                 .invoke(null);
+        } catch(Exception ignored) {
+            // No tables were generated for this package
+        }
+    }
+
+
+    /** Empty the cache whenever the configuration changes or memory runs low.
+     *  @param app The application context. */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static void watchConfiguration(Context app) {
+        if(app == null) return;
+        app.registerComponentCallbacks(new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                clear();
+            }
+
+            @Override
+            public void onLowMemory() {
+                clear();
+            }
+        });
+    }
+}
@@ -98,7 +98,7 @@ public class SlidingTabLayout extends HorizontalScrollView {
         // Make sure that the Tab Strips fills this View
         setFillViewport(true);
 
-        mTitleOffset = (int) (TITLE_OFFSET_DIPS * getResources().getDisplayMetrics().density);
+        mTitleOffset = (int) (TITLE_OFFSET_DIPS * DimensionResolver.get(context).density);
 
         mTabStrip = new SlidingTabStrip(context);
         addView(mTabStrip, LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
@@ -228,7 +228,7 @@ public class SlidingTabLayout extends HorizontalScrollView {
             textView.setAllCaps(true);
         }
 
-        int padding = (int) (TAB_VIEW_PADDING_DIPS * getResources().getDisplayMetrics().density);
+        int padding = (int) (TAB_VIEW_PADDING_DIPS * DimensionResolver.get(context).density);
         textView.setPadding(padding, padding, padding, padding);
 
         return textView;
@@ -59,7 +59,7 @@ class SlidingTabStrip extends LinearLayout {
         super(context, attrs);
         setWillNotDraw(false);
 
-        final float density = getResources().getDisplayMetrics().density;
+        final float density = DimensionResolver.get(context).density;
 
         TypedValue outValue = new TypedValue();
         context.getTheme().resolveAttribute(android.R.attr.colorForeground,
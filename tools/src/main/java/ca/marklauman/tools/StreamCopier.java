@@ -0,0 +1,517 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.Checksum;
+
+/** Copies the contents of one stream into another.
+ *  When both streams are backed by files (including the streams of a
+ *  {@link android.os.ParcelFileDescriptor}) the copy is done with
+ *  {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ *  so the bytes never pass through the java heap. All other streams are copied
+ *  through large buffers that are pooled between copies.<br/>
+ *  <br/>
+ *  A {@link Checksum} may be computed as the bytes stream through, so a copy can be
+ *  verified without reading it back. Copies between two {@link File}s can be made
+ *  resumable: progress is committed to a small checkpoint file next to the
+ *  destination, and a failed copy picks up from the last committed offset.<br/>
+ *  <br/>
+ *  A {@link Stage} (such as {@link GzipCompressor}) may transform the data on its way
+ *  to the output, so a copy and a compression happen in one pass.<br/>
+ *  <br/>
+ *  A copier may be reused, but it must not be used by two threads at once.
+ *  @author Mark Lauman */
+@SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+public class StreamCopier {
+
+    /** Default size of the buffers used to copy plain streams. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /** Largest amount of data moved by a single channel transfer.
+     *  Keeps progress updates flowing on very large files. */
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+    /** {@link #setSyncInterval(long)} value that never syncs the output to disk. */
+    public static final long SYNC_NEVER = -1;
+    /** {@link #setSyncInterval(long)} value that syncs the output once the copy is done. */
+    public static final long SYNC_AT_END = 0;
+    /** Suffix added to the destination's name to make its checkpoint file. */
+    public static final String CHECKPOINT_SUFFIX = ".part";
+    /** Bytes copied between checkpoints when the output is never synced. */
+    private static final long CHECKPOINT_INTERVAL = 8 * 1024 * 1024;
+    /** Maximum number of buffers kept in the pool. */
+    private static final int POOL_SIZE = 4;
+    /** Buffers of {@link #DEFAULT_BUFFER_SIZE} that are not in use. */
+    private static final ArrayList<ByteBuffer> pool = new ArrayList<>(POOL_SIZE);
+
+    /** Listener notified as the copy progresses. */
+    private ProgressListener listener = null;
+    /** True if the streams are closed once the copy is done. */
+    private boolean closeStreams = true;
+    /** Size of the buffer used to copy plain streams. */
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    /** Checksum updated with every byte copied. */
+    private Checksum checksum = null;
+    /** The value {@link #checksum} must have at the end of the copy. */
+    private Long expected = null;
+    /** When the output is synced to disk. See {@link #setSyncInterval(long)}. */
+    private long syncInterval = SYNC_NEVER;
+    /** True if copies between files resume from their checkpoint. */
+    private boolean resumable = false;
+    /** Transformation applied to the data before it is written. */
+    private Stage stage = null;
+
+    /** File stream being written by the current copy, if there is one. */
+    private FileOutputStream target;
+    /** Checkpoint file of the current copy, if it is resumable. */
+    private File checkpoint;
+    /** Source file of the current copy, if it is resumable. */
+    private File source;
+    /** Offset in the output at which the current copy started. */
+    private long base;
+    /** Bytes written by the current copy when progress was last committed. */
+    private long committed;
+
+
+    /** Set a listener to be notified as the copy progresses.
+     *  @param listener The listener to notify, or null to remove the current listener.
+     *  @return This copier, for chaining. */
+    public StreamCopier setListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+
+    /** Set whether the streams are closed when the copy finishes.
+     *  Streams are closed even if the copy fails.<br/>
+     *  Defaults to {@code true}.
+     *  @param close True to close both streams once the copy is done.
+     *  @return This copier, for chaining. */
+    public StreamCopier setCloseStreams(boolean close) {
+        closeStreams = close;
+        return this;
+    }
+
+
+    /** Set the size of the buffer used when the streams are not backed by files.
+     *  Buffers of the default size are pooled, other sizes are allocated per copy.<br/>
+     *  Defaults to {@link #DEFAULT_BUFFER_SIZE}.
+     *  @param size The buffer size in bytes.
+     *  @return This copier, for chaining. */
+    public StreamCopier setBufferSize(int size) {
+        if(size < 1) throw new IllegalArgumentException("Buffer size must be positive");
+        bufferSize = size;
+        return this;
+    }
+
+
+    /** Compute a checksum of the data as it is copied. The checksum is not reset
+     *  before the copy, and can be read once the copy is done. Setting a checksum
+     *  stops file streams from being copied with a channel transfer.
+     *  @param checksum The checksum to update, such as {@link Crc32c}.
+     *                  Null to stop computing a checksum.
+     *  @return This copier, for chaining. */
+    public StreamCopier setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+
+    /** Verify the copy against a known checksum. If the checksum set with
+     *  {@link #setChecksum(Checksum)} does not match this value at the end
+     *  of the copy, an {@link IOException} is thrown.
+     *  @param value The expected value of the checksum, or null to skip verification.
+     *  @return This copier, for chaining. */
+    public StreamCopier setExpectedChecksum(Long value) {
+        expected = value;
+        return this;
+    }
+
+
+    /** Set how often the output is synced to disk. Only applies to file outputs.
+     *  A resumable copy writes its checkpoint after each sync. If the output is only
+     *  synced at the end (or never), checkpoints are written every 8MB instead, and
+     *  only survive a crash of the app, not of the device.<br/>
+     *  Defaults to {@link #SYNC_NEVER}.
+     *  @param bytes {@link #SYNC_NEVER}, {@link #SYNC_AT_END}, or the number of bytes
+     *               to copy between each sync.
+     *  @return This copier, for chaining. */
+    public StreamCopier setSyncInterval(long bytes) {
+        syncInterval = bytes;
+        return this;
+    }
+
+
+    /** Set whether copies between two {@link File}s can be resumed.
+     *  A resumable copy keeps a checkpoint file (the destination with
+     *  {@link #CHECKPOINT_SUFFIX} added) until it succeeds. If the copy is run again
+     *  after a failure, it continues from the last committed offset.<br/>
+     *  Defaults to {@code false}.
+     *  @param resume True to make file copies resumable.
+     *  @return This copier, for chaining. */
+    public StreamCopier setResumable(boolean resume) {
+        resumable = resume;
+        return this;
+    }
+
+
+    /** Transform the data as it is copied, with a compressor for example.
+     *  When a stage is set, file streams are not copied with a channel transfer
+     *  and copies between files cannot be resumed.
+     *  @param stage The stage to run the data through, or null to copy it unchanged.
+     *  @return This copier, for chaining. */
+    public StreamCopier setStage(Stage stage) {
+        this.stage = stage;
+        return this;
+    }
+
+
+    /** Copy one file into another, replacing its contents.
+     *  If this copier is resumable and an earlier copy between these files failed,
+     *  only the data after its last committed offset is copied. Any checksum is
+     *  brought up to date by reading the part of the destination that is already
+     *  written, so a resumed copy is verified just like a complete one.
+     *  @param src The file to read from.
+     *  @param dst The file to write to.
+     *  @return The number of bytes written to {@code dst} by this call.
+     *  @throws IOException if any errors occur while copying. */
+    public long copy(File src, File dst) throws IOException {
+        File check = resumable && stage == null ? new File(dst.getPath() + CHECKPOINT_SUFFIX) : null;
+        long offset = check == null ? 0 : readCheckpoint(check, src, dst);
+        if(0 < offset && checksum != null) updateChecksum(dst, offset);
+
+        FileInputStream in = new FileInputStream(src);
+        FileOutputStream out;
+        try {
+            if(0 < offset) {
+                in.getChannel().position(offset);
+                out = new FileOutputStream(dst, true);
+                out.getChannel().truncate(offset);
+            } else out = new FileOutputStream(dst);
+        } catch(IOException e) {
+            in.close();
+            throw e;
+        }
+
+        checkpoint = check;
+        source = src;
+        base = offset;
+        boolean close = closeStreams;
+        closeStreams = true;
+        try {
+            long copied = copy(in, out);
+            if(check != null && !check.delete() && check.exists())
+                throw new IOException("Unable to remove checkpoint " + check);
+            return copied;
+        } finally {
+            closeStreams = close;
+            checkpoint = null;
+            source = null;
+            base = 0;
+        }
+    }
+
+
+    /** Copy everything remaining in one stream into the other.
+     *  @param in The stream to read from.
+     *  @param out The stream to write to.
+     *  @return The number of bytes written to {@code out}. This is the number
+     *          of bytes copied, unless a stage transformed the data.
+     *  @throws IOException if any errors occur while copying. */
+    public long copy(InputStream in, OutputStream out) throws IOException {
+        target = out instanceof FileOutputStream ? (FileOutputStream) out : null;
+        committed = 0;
+        try {
+            long copied = 0;
+            if(stage != null)
+                copied = stagedCopy(in, out);
+            else {
+                if(checksum == null && in instanceof FileInputStream && target != null)
+                    copied = transfer(((FileInputStream) in).getChannel(),
+                                      target.getChannel());
+                copied = bufferedCopy(in, out, copied);
+            }
+            out.flush();
+            if(target != null && syncInterval != SYNC_NEVER)
+                target.getFD().sync();
+            verify();
+            return copied;
+        } finally {
+            target = null;
+            if(closeStreams) close(in, out);
+        }
+    }
+
+
+    /** Check the checksum against its expected value, if there is one. */
+    private void verify() throws IOException {
+        if(checksum == null || expected == null) return;
+        if(checksum.getValue() == expected) return;
+        if(checkpoint != null) //noinspection ResultOfMethodCallIgnored
+            checkpoint.delete();
+        throw new IOException("Checksum mismatch: expected " + Long.toHexString(expected)
+                              + ", got " + Long.toHexString(checksum.getValue()));
+    }
+
+
+    /** Commit the progress of the current copy if enough data has been written
+     *  since the last commit. Committing syncs the output (if syncing is enabled)
+     *  and then records the offset in the checkpoint (if the copy is resumable).
+     *  @param copied The number of bytes written by the current copy. */
+    private void commit(long copied) throws IOException {
+        if(target == null) return;
+        long interval = 0 < syncInterval ? syncInterval : CHECKPOINT_INTERVAL;
+        if(copied - committed < interval) return;
+        if(syncInterval <= 0 && checkpoint == null) return;
+
+        target.flush();
+        if(0 < syncInterval) target.getFD().sync();
+        if(checkpoint != null) writeCheckpoint(base + copied);
+        committed = copied;
+    }
+
+
+    /** Amount of data to move in one channel transfer. */
+    private long transferChunk() {
+        if(0 < syncInterval) return Math.min(TRANSFER_CHUNK, syncInterval);
+        return TRANSFER_CHUNK;
+    }
+
+
+    /** Copy between two file channels without passing through the java heap.
+     *  Channels that cannot be positioned (such as pipes) are skipped, leaving
+     *  the data to be copied by {@link #bufferedCopy(InputStream, OutputStream, long)}.
+     *  @param src The channel to read from.
+     *  @param dst The channel to write to.
+     *  @return The number of bytes copied. */
+    private long transfer(FileChannel src, FileChannel dst) throws IOException {
+        long pos, size;
+        try {
+            pos = src.position();
+            size = src.size();
+        } catch(IOException e) {
+            return 0;
+        }
+        if(size <= pos) return 0;
+
+        long start = pos;
+        long total = base + size - start;
+        long chunk = transferChunk();
+        while(pos < size) {
+            long moved = src.transferTo(pos, Math.min(chunk, size - pos), dst);
+            if(moved <= 0) break;
+            pos += moved;
+            commit(pos - start);
+            if(listener != null) listener.onProgress(base + pos - start, total);
+        }
+        src.position(pos);
+        return pos - start;
+    }
+
+
+    /** Copy between two streams through a pooled buffer.
+     *  @param in The stream to read from.
+     *  @param out The stream to write to.
+     *  @param copied The number of bytes already copied by other means.
+     *  @return The total number of bytes copied, including {@code copied}. */
+    private long bufferedCopy(InputStream in, OutputStream out, long copied) throws IOException {
+        ByteBuffer buffer = obtainBuffer(bufferSize);
+        try {
+            byte[] bytes = buffer.array();
+            int length;
+            while(0 < (length = in.read(bytes))) {
+                out.write(bytes, 0, length);
+                if(checksum != null) checksum.update(bytes, 0, length);
+                copied += length;
+                commit(copied);
+                if(listener != null) listener.onProgress(base + copied, -1);
+            }
+            return copied;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+
+    /** Copy between two streams, running the data through the stage.
+     *  The checksum and the listener see the data before it is transformed.
+     *  @param in The stream to read from.
+     *  @param out The stream to write to.
+     *  @return The number of bytes written to {@code out}. */
+    private long stagedCopy(InputStream in, OutputStream out) throws IOException {
+        ByteBuffer buffer = obtainBuffer(bufferSize);
+        stage.start();
+        try {
+            byte[] bytes = buffer.array();
+            long read = 0, written = 0;
+            int length;
+            while(0 < (length = in.read(bytes))) {
+                written += stage.process(bytes, 0, length, out);
+                if(checksum != null) checksum.update(bytes, 0, length);
+                read += length;
+                commit(written);
+                if(listener != null) listener.onProgress(read, -1);
+            }
+            return written + stage.finish(out);
+        } finally {
+            stage.release();
+            releaseBuffer(buffer);
+        }
+    }
+
+
+    /** Bring the checksum up to date with the start of a file.
+     *  @param file The file to read.
+     *  @param length The number of bytes to read from the start of the file. */
+    private void updateChecksum(File file, long length) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        ByteBuffer buffer = obtainBuffer(bufferSize);
+        try {
+            byte[] bytes = buffer.array();
+            int read;
+            while(0 < length
+                  && 0 < (read = in.read(bytes, 0, (int) Math.min(bytes.length, length)))) {
+                checksum.update(bytes, 0, read);
+                length -= read;
+            }
+            if(0 < length) throw new IOException("Destination is shorter than its checkpoint");
+        } finally {
+            releaseBuffer(buffer);
+            in.close();
+        }
+    }
+
+
+    /** Read the committed offset of an earlier copy from its checkpoint.
+     *  Checkpoints that do not match the files are ignored.
+     *  @param check The checkpoint file.
+     *  @param src The source of the copy.
+     *  @param dst The destination of the copy.
+     *  @return The offset to resume from, or 0 to start from the beginning. */
+    private static long readCheckpoint(File check, File src, File dst) {
+        if(!check.exists()) return 0;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(check));
+            try {
+                long offset = in.readLong();
+                long length = in.readLong();
+                long modified = in.readLong();
+                if(length != src.length() || modified != src.lastModified()) return 0;
+                if(offset < 0 || length < offset || dst.length() < offset) return 0;
+                return offset;
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            return 0;
+        }
+    }
+
+
+    /** Record the committed offset of the current copy in its checkpoint.
+     *  @param offset The number of bytes in the destination that are safe to keep. */
+    private void writeCheckpoint(long offset) throws IOException {
+        FileOutputStream fos = new FileOutputStream(checkpoint);
+        DataOutputStream out = new DataOutputStream(fos);
+        try {
+            out.writeLong(offset);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.flush();
+            if(0 < syncInterval) fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /** Close both streams. The input is closed even if closing the output fails. */
+    private static void close(InputStream in, OutputStream out) throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /** Get a buffer from the pool, or allocate one if the pool has none of this size.
+     *  @param size The size of the buffer needed.
+     *  @return A cleared, array-backed buffer. */
+    static ByteBuffer obtainBuffer(int size) {
+        if(size == DEFAULT_BUFFER_SIZE) {
+            synchronized(pool) {
+                int last = pool.size() - 1;
+                if(0 <= last) return pool.remove(last);
+            }
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+
+    /** Return a buffer to the pool once it is no longer in use.
+     *  @param buffer The buffer to release. */
+    static void releaseBuffer(ByteBuffer buffer) {
+        if(buffer.capacity() != DEFAULT_BUFFER_SIZE) return;
+        buffer.clear();
+        synchronized(pool) {
+            if(pool.size() < POOL_SIZE) pool.add(buffer);
+        }
+    }
+
+
+    /** A transformation applied to the data as it is copied.
+     *  A stage is used by one copy at a time, and may be reused for later copies. */
+    public interface Stage {
+        /** Called before a copy begins. Prepare for a new stream of data. */
+        void start();
+
+        /** Transform a block of data and write the result.
+         *  The block may be reused once this returns.
+         *  @param b The array holding the data.
+         *  @param off The offset of the data in the array.
+         *  @param len The number of bytes of data.
+         *  @param out The stream to write the result to.
+         *  @return The number of bytes written to {@code out}. */
+        int process(byte[] b, int off, int len, OutputStream out) throws IOException;
+
+        /** Called once all the data has been processed. Write anything still pending.
+         *  @param out The stream to write to.
+         *  @return The number of bytes written to {@code out}. */
+        int finish(OutputStream out) throws IOException;
+
+        /** Called after every copy, even ones that fail. Release any resources
+         *  obtained in {@link #start()}. */
+        void release();
+    }
+
+
+    /** Listener notified as a copy progresses. */
+    public interface ProgressListener {
+        /** Called each time a block of data has been copied.
+         *  @param copied The number of bytes copied so far. If the copy was resumed,
+         *                this includes the bytes copied before it was interrupted.
+         *  @param total The total number of bytes to be copied, or -1 if unknown. */
+        void onProgress(long copied, long total);
+    }
+}
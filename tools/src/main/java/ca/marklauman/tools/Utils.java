@@ -14,17 +14,18 @@
 package ca.marklauman.tools;
 
 import android.content.Context;
-import android.content.res.TypedArray;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
-import android.support.v4.content.ContextCompat;
-import android.util.TypedValue;
 import android.widget.TextView;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Array;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.zip.Checksum;
 
 @SuppressWarnings({"SameParameterValue", "WeakerAccess", "unused"})
 public abstract class Utils {
@@ -35,18 +36,10 @@ public abstract class Utils {
      *  @param c The {@code Context} to search for the array.
      *  @param resourceId The resource id of an {@code <array>} containing a list of resources.
      *  @return The resource ids of all the drawables in the array, in the order in which
-     *  they appear in the xml. Returns null if the array does not exist. */
+     *  they appear in the xml. Returns null if the array does not exist.
+     *  @see ResourceCache */
     public static int[] getResourceArray(Context c, int resourceId) {
-        TypedArray ta = c.getResources()
-                         .obtainTypedArray(resourceId);
-        if(ta == null) return null;
-
-        int[] res = new int[ta.length()];
-        for(int i=0; i<ta.length(); i++)
-            res[i] = ta.getResourceId(i, 0);
-
-        ta.recycle();
-        return res;
+        return ResourceCache.getResourceArray(c, resourceId);
     }
 
     /** Retrieve an array of drawable resources from the xml of the provided {@link Context}.
@@ -55,20 +48,24 @@ public abstract class Utils {
      *  @param c The {@code Context} to search for the array.
      *  @param resourceId The resource id of an {@code <array>} containing a list of resources.
      *  @return The drawables in the array, in the order in which they appear in the xml.
-     *  Returns null if the array does not exist. */
+     *  Returns null if the array does not exist. Drawables from the same resource share
+     *  their bitmaps, so call {@link Drawable#mutate()} before modifying them.
+     *  @see ResourceCache */
     public static Drawable[] getDrawableArray(Context c, int resourceId) {
-        TypedArray ta = c.getResources()
-                         .obtainTypedArray(resourceId);
-        if(ta == null) return null;
+        return ResourceCache.getDrawableArray(c, resourceId);
+    }
 
-        Drawable[] res = new Drawable[ta.length()];
-        try {
-            for(int i=0; i<ta.length(); i++)
-                res[i] = ContextCompat.getDrawable(c, ta.getResourceId(i, 0));
-        } finally {
-            ta.recycle();
-        }
-        return res;
+    /** Retrieve an array of drawable resources that are only loaded as they are used.
+     *  Prefer this to {@link #getDrawableArray(Context, int)} for long lists, where most
+     *  of the drawables are off screen.
+     *  @param c The {@code Context} to search for the array.
+     *  @param resourceId The resource id of an {@code <array>} containing a list of resources.
+     *  @return A list of the drawables in the array, in the order in which they appear
+     *  in the xml. Returns null if the array does not exist. */
+    public static LazyDrawableList getLazyDrawableArray(Context c, int resourceId) {
+        int[] ids = ResourceCache.getResourceArray(c, resourceId);
+        if(ids == null) return null;
+        return new LazyDrawableList(c, ids);
     }
 
     /** Round a number to a given number of places
@@ -79,15 +76,30 @@ public abstract class Utils {
         return (float)round((double)number, places);
     }
 
-    /** Round a number to a given number of places
+    /** Round a number to a given number of places.
+     *  Rounding is based on the exact value of the number, so 0.125 becomes 0.13
+     *  but 1.005 (really 1.00499999...) becomes 1.0. To display the result,
+     *  use a {@link NumberFormatter}.
      *  @param number The number to round
      *  @param places The number of decimal places to keep
      *  @return The rounded number     */
     public static double round(double number, int places) {
+        if(NumberFormatter.canRound(places))
+            return NumberFormatter.round(number, places);
         double trans = Math.pow(10, places);
         return Math.round(trans * number) / trans;
     }
 
+    /** Estimated number of characters used by one number when pre-sizing a join. */
+    private static final int JOIN_NUMBER_SIZE = 8;
+    /** Estimated number of characters used by one object when pre-sizing a join. */
+    private static final int JOIN_OBJECT_SIZE = 16;
+    /** Largest capacity a join will reserve up front. Builders grow past it as needed. */
+    private static final int JOIN_MAX_PRESIZE = 1 << 20;
+    /** {@link #countChars(CharSequence, char...)} uses a lookup table when every
+     *  needle is below this value. */
+    private static final int COUNT_TABLE_SIZE = 4096;
+
     /** Join all the values together into one string.
      *  @param separator The string used to separate the individual values.
      *  @param values The values to place into the string. Values will be
@@ -97,41 +109,48 @@ public abstract class Utils {
      *          The separator will not appear at the beginning or end
      *          of the result.                                     */
     public static <T> String join(String separator, T[] values) {
-        // sanitize inputs
         if(values == null) return "" + null;
-        if(separator == null) separator = "" + null;
-
-        // join the strings
-        String res = "";
-        for(T val : values)
-            res += separator + val;
+        return join(joinBuilder(values.length, separator, JOIN_OBJECT_SIZE),
+                    separator, values).toString();
+    }
 
-        // remove the excess separator at the start and return
-        if(res.length() < separator.length()) return "";
-        return res.substring(separator.length());
+    /** Join all the values together into one string.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to place into the string.
+     *  @return A String made of all the values joined together, with each
+     *          item separated from its neighbours by the separator.
+     *          The separator will not appear at the beginning or end
+     *          of the result.                                     */
+    public static String join(String separator, int[] values) {
+        if(values == null) return "" + null;
+        return join(joinBuilder(values.length, separator, JOIN_NUMBER_SIZE),
+                    separator, values).toString();
     }
 
     /** Join all the values together into one string.
      *  @param separator The string used to separate the individual values.
-     *  @param values The values to place into the string. Values will be
-     *                converted by their class' toString() method.
+     *  @param values The values to place into the string.
      *  @return A String made of all the values joined together, with each
      *          item separated from its neighbours by the separator.
      *          The separator will not appear at the beginning or end
      *          of the result.                                     */
     public static String join(String separator, long[] values) {
-        // sanitize inputs
         if(values == null) return "" + null;
-        if(separator == null) separator = "" + null;
-
-        // join the strings
-        String res = "";
-        for(long val : values)
-            res += separator + val;
+        return join(joinBuilder(values.length, separator, JOIN_NUMBER_SIZE),
+                    separator, values).toString();
+    }
 
-        // remove the excess separator at the start and return
-        if(res.length() < separator.length()) return "";
-        return res.substring(separator.length());
+    /** Join all the values together into one string.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to place into the string.
+     *  @return A String made of all the values joined together, with each
+     *          item separated from its neighbours by the separator.
+     *          The separator will not appear at the beginning or end
+     *          of the result.                                     */
+    public static String join(String separator, double[] values) {
+        if(values == null) return "" + null;
+        return join(joinBuilder(values.length, separator, JOIN_OBJECT_SIZE),
+                    separator, values).toString();
     }
 
     /** Join all the values together into one string.
@@ -142,18 +161,9 @@ public abstract class Utils {
      *          The separator will not appear at the beginning or end
      *          of the result.                                     */
     public static String join(String separator, String... values) {
-        // sanitize inputs
-        if(values == null) return ""+null;
-        if(separator == null) separator = "" + null;
-
-        // join the strings
-        String res = "";
-        for(String val : values)
-            res += separator + val;
-
-        // remove the excess separator at the start and return
-        if(res.length() < separator.length()) return "";
-        return res.substring(separator.length());
+        if(values == null) return "" + null;
+        return join(joinBuilder(values.length, separator, JOIN_OBJECT_SIZE),
+                    separator, values).toString();
     }
 
     /** Join all the values together into one string.
@@ -165,18 +175,269 @@ public abstract class Utils {
      *          The separator will not appear at the beginning or end
      *          of the result.                                     */
     public static <T> String join(String separator, Collection<T> values) {
-        // sanitize inputs
         if(values == null) return "" + null;
+        return join(joinBuilder(values.size(), separator, JOIN_OBJECT_SIZE),
+                    separator, values).toString();
+    }
+
+    /** Join all the values together into one string.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to place into the string. Values will be
+     *                converted by their class' toString() method.
+     *  @return A String made of all the values joined together, with each
+     *          item separated from its neighbours by the separator.
+     *          The separator will not appear at the beginning or end
+     *          of the result.                                     */
+    public static <T> String join(String separator, Iterable<T> values) {
+        if(values == null) return "" + null;
+        return join(new StringBuilder(), separator, values).toString();
+    }
+
+    /** Join all the values remaining in an iterator together into one string.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to place into the string. Values will be
+     *                converted by their class' toString() method.
+     *  @return A String made of all the values joined together, with each
+     *          item separated from its neighbours by the separator.
+     *          The separator will not appear at the beginning or end
+     *          of the result.                                     */
+    public static <T> String join(String separator, Iterator<T> values) {
+        if(values == null) return "" + null;
+        return join(new StringBuilder(), separator, values).toString();
+    }
+
+
+    /** Join all the values together, appending them to the end of a {@link StringBuilder}.
+     *  Pre-size the builder to avoid any copying while the values are appended.
+     *  @param out The builder to append to.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to append. Values will be converted by
+     *                their class' toString() method.
+     *  @return {@code out}, for chaining. */
+    public static <T> StringBuilder join(StringBuilder out, String separator, T[] values) {
+        if(values == null) return out.append((Object) null);
+        if(separator == null) separator = "" + null;
+        for(int i=0; i<values.length; i++) {
+            if(i != 0) out.append(separator);
+            out.append(values[i]);
+        }
+        return out;
+    }
+
+    /** Join all the values together, appending them to the end of a {@link StringBuilder}.
+     *  Pre-size the builder to avoid any copying while the values are appended.
+     *  @param out The builder to append to.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to append.
+     *  @return {@code out}, for chaining. */
+    public static StringBuilder join(StringBuilder out, String separator, int[] values) {
+        if(values == null) return out.append((Object) null);
+        if(separator == null) separator = "" + null;
+        for(int i=0; i<values.length; i++) {
+            if(i != 0) out.append(separator);
+            out.append(values[i]);
+        }
+        return out;
+    }
+
+    /** Join all the values together, appending them to the end of a {@link StringBuilder}.
+     *  Pre-size the builder to avoid any copying while the values are appended.
+     *  @param out The builder to append to.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to append.
+     *  @return {@code out}, for chaining. */
+    public static StringBuilder join(StringBuilder out, String separator, long[] values) {
+        if(values == null) return out.append((Object) null);
+        if(separator == null) separator = "" + null;
+        for(int i=0; i<values.length; i++) {
+            if(i != 0) out.append(separator);
+            out.append(values[i]);
+        }
+        return out;
+    }
+
+    /** Join all the values together, appending them to the end of a {@link StringBuilder}.
+     *  Pre-size the builder to avoid any copying while the values are appended.
+     *  @param out The builder to append to.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to append.
+     *  @return {@code out}, for chaining. */
+    public static StringBuilder join(StringBuilder out, String separator, double[] values) {
+        if(values == null) return out.append((Object) null);
+        if(separator == null) separator = "" + null;
+        for(int i=0; i<values.length; i++) {
+            if(i != 0) out.append(separator);
+            out.append(values[i]);
+        }
+        return out;
+    }
+
+    /** Join all the values together, appending them to the end of a {@link StringBuilder}.
+     *  @param out The builder to append to.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to append. Values will be converted by
+     *                their class' toString() method.
+     *  @return {@code out}, for chaining. */
+    public static <T> StringBuilder join(StringBuilder out, String separator, Iterable<T> values) {
+        if(values == null) return out.append((Object) null);
+        return join(out, separator, values.iterator());
+    }
+
+    /** Join all the values remaining in an iterator together,
+     *  appending them to the end of a {@link StringBuilder}.
+     *  @param out The builder to append to.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to append. Values will be converted by
+     *                their class' toString() method.
+     *  @return {@code out}, for chaining. */
+    public static <T> StringBuilder join(StringBuilder out, String separator, Iterator<T> values) {
+        if(values == null) return out.append((Object) null);
+        if(separator == null) separator = "" + null;
+        if(!values.hasNext()) return out;
+        out.append(values.next());
+        while(values.hasNext())
+            out.append(separator).append(values.next());
+        return out;
+    }
+
+
+    /** Join all the values together, writing them to an {@link Appendable}.
+     *  @param out The destination for the joined values.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to write. Values will be converted by
+     *                their class' toString() method.
+     *  @return {@code out}, for chaining.
+     *  @throws IOException if {@code out} throws one while being written to. */
+    public static <T, A extends Appendable> A join(A out, String separator, T[] values)
+            throws IOException {
+        if(values == null) {
+            out.append("" + null);
+            return out;
+        }
         if(separator == null) separator = "" + null;
+        for(int i=0; i<values.length; i++) {
+            if(i != 0) out.append(separator);
+            out.append(String.valueOf(values[i]));
+        }
+        return out;
+    }
 
-        // join the strings
-        String res = "";
-        for(T val : values)
-            res += separator + val;
+    /** Join all the values together, writing them to an {@link Appendable}.
+     *  @param out The destination for the joined values.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to write.
+     *  @return {@code out}, for chaining.
+     *  @throws IOException if {@code out} throws one while being written to. */
+    public static <A extends Appendable> A join(A out, String separator, int[] values)
+            throws IOException {
+        if(values == null) {
+            out.append("" + null);
+            return out;
+        }
+        if(separator == null) separator = "" + null;
+        StringBuilder digits = new StringBuilder(11);
+        for(int i=0; i<values.length; i++) {
+            if(i != 0) out.append(separator);
+            digits.setLength(0);
+            out.append(digits.append(values[i]));
+        }
+        return out;
+    }
 
-        // remove the excess separator at the start and return
-        if(res.length() < separator.length()) return "";
-        return res.substring(separator.length());
+    /** Join all the values together, writing them to an {@link Appendable}.
+     *  @param out The destination for the joined values.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to write.
+     *  @return {@code out}, for chaining.
+     *  @throws IOException if {@code out} throws one while being written to. */
+    public static <A extends Appendable> A join(A out, String separator, long[] values)
+            throws IOException {
+        if(values == null) {
+            out.append("" + null);
+            return out;
+        }
+        if(separator == null) separator = "" + null;
+        StringBuilder digits = new StringBuilder(20);
+        for(int i=0; i<values.length; i++) {
+            if(i != 0) out.append(separator);
+            digits.setLength(0);
+            out.append(digits.append(values[i]));
+        }
+        return out;
+    }
+
+    /** Join all the values together, writing them to an {@link Appendable}.
+     *  @param out The destination for the joined values.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to write.
+     *  @return {@code out}, for chaining.
+     *  @throws IOException if {@code out} throws one while being written to. */
+    public static <A extends Appendable> A join(A out, String separator, double[] values)
+            throws IOException {
+        if(values == null) {
+            out.append("" + null);
+            return out;
+        }
+        if(separator == null) separator = "" + null;
+        StringBuilder digits = new StringBuilder(24);
+        for(int i=0; i<values.length; i++) {
+            if(i != 0) out.append(separator);
+            digits.setLength(0);
+            out.append(digits.append(values[i]));
+        }
+        return out;
+    }
+
+    /** Join all the values together, writing them to an {@link Appendable}.
+     *  @param out The destination for the joined values.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to write. Values will be converted by
+     *                their class' toString() method.
+     *  @return {@code out}, for chaining.
+     *  @throws IOException if {@code out} throws one while being written to. */
+    public static <T, A extends Appendable> A join(A out, String separator, Iterable<T> values)
+            throws IOException {
+        if(values == null) {
+            out.append("" + null);
+            return out;
+        }
+        return join(out, separator, values.iterator());
+    }
+
+    /** Join all the values remaining in an iterator together, writing them to an
+     *  {@link Appendable}.
+     *  @param out The destination for the joined values.
+     *  @param separator The string used to separate the individual values.
+     *  @param values The values to write. Values will be converted by
+     *                their class' toString() method.
+     *  @return {@code out}, for chaining.
+     *  @throws IOException if {@code out} throws one while being written to. */
+    public static <T, A extends Appendable> A join(A out, String separator, Iterator<T> values)
+            throws IOException {
+        if(values == null) {
+            out.append("" + null);
+            return out;
+        }
+        if(separator == null) separator = "" + null;
+        if(!values.hasNext()) return out;
+        out.append(String.valueOf(values.next()));
+        while(values.hasNext()) {
+            out.append(separator);
+            out.append(String.valueOf(values.next()));
+        }
+        return out;
+    }
+
+
+    /** Create a StringBuilder large enough to hold a typical join.
+     *  @param count The number of values being joined.
+     *  @param separator The separator placed between them.
+     *  @param itemSize The expected size of each value.
+     *  @return A new, empty StringBuilder. */
+    private static StringBuilder joinBuilder(int count, String separator, int itemSize) {
+        int sepSize = separator == null ? 4 : separator.length();
+        long size = (long) count * (sepSize + itemSize);
+        return new StringBuilder((int) Math.min(size, JOIN_MAX_PRESIZE));
     }
 
     /** Count the occurrences of the character in the sequence.
@@ -186,35 +447,224 @@ public abstract class Utils {
     public static int countChar(CharSequence seq, char c) {
         if(seq == null || seq.length() < 1) return 0;
         int count = 0;
-        for(int i=0; i<seq.length(); i++) {
+        if(seq instanceof String) {
+            String str = (String) seq;
+            for(int i = str.indexOf(c); 0 <= i; i = str.indexOf(c, i + 1))
+                count++;
+            return count;
+        }
+        int length = seq.length();
+        for(int i=0; i<length; i++) {
             if(c == seq.charAt(i)) count++;
         }
         return count;
     }
 
 
+    /** Count the occurrences of the character in part of an array.
+     *  @param chars The characters to loop over.
+     *  @param start The first position to check.
+     *  @param end The position after the last one to check.
+     *  @param c The character to find.
+     *  @return The total number of times c appears in the range. */
+    public static int countChar(char[] chars, int start, int end, char c) {
+        int count = 0;
+        for(int i=start; i<end; i++) {
+            if(c == chars[i]) count++;
+        }
+        return count;
+    }
+
+
+    /** Count the occurrences of several characters in one pass over the sequence.
+     *  @param seq The sequence of characters to loop over.
+     *  @param needles The characters to find.
+     *  @return The number of times each needle appears in seq, in the order of the needles. */
+    public static int[] countChars(CharSequence seq, char... needles) {
+        int[] counts = new int[needles.length];
+        if(seq == null || needles.length == 0) return counts;
+
+        // Map every character to the first needle it matches
+        int max = 0;
+        for(char needle : needles)
+            max = Math.max(max, needle);
+        int length = seq.length();
+        if(max < COUNT_TABLE_SIZE) {
+            int[] table = new int[max + 1];
+            for(int n=needles.length-1; 0 <= n; n--)
+                table[needles[n]] = n + 1;
+            int[] found = new int[needles.length + 1];
+            for(int i=0; i<length; i++) {
+                char c = seq.charAt(i);
+                if(c <= max) found[table[c]]++;
+            }
+            System.arraycopy(found, 1, counts, 0, counts.length);
+        } else {
+            for(int i=0; i<length; i++) {
+                char c = seq.charAt(i);
+                for(int n=0; n<needles.length; n++) {
+                    if(c == needles[n]) {
+                        counts[n]++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Repeated needles get the count of their first copy
+        for(int n=1; n<needles.length; n++) {
+            for(int m=0; m<n; m++) {
+                if(needles[m] == needles[n]) {
+                    counts[n] = counts[m];
+                    break;
+                }
+            }
+        }
+        return counts;
+    }
+
+
+    /** Find every occurrence of a character in the sequence.
+     *  @param seq The sequence of characters to loop over.
+     *  @param c The character to find.
+     *  @return The positions of c in seq, in increasing order. */
+    public static int[] indexesOf(CharSequence seq, char c) {
+        if(seq == null) return new int[0];
+        int[] res = new int[16];
+        int count = 0;
+        if(seq instanceof String) {
+            String str = (String) seq;
+            for(int i = str.indexOf(c); 0 <= i; i = str.indexOf(c, i + 1)) {
+                if(count == res.length) res = copyOf(res, count * 2);
+                res[count++] = i;
+            }
+        } else {
+            int length = seq.length();
+            for(int i=0; i<length; i++) {
+                if(c != seq.charAt(i)) continue;
+                if(count == res.length) res = copyOf(res, count * 2);
+                res[count++] = i;
+            }
+        }
+        return count == res.length ? res : copyOf(res, count);
+    }
+
+
+    /** Copy an array into a new array of another length, padded with zeros.
+     *  Does what {@code Arrays.copyOf()} does, which needs API 9. */
+    static int[] copyOf(int[] array, int length) {
+        int[] res = new int[length];
+        System.arraycopy(array, 0, res, 0, Math.min(array.length, length));
+        return res;
+    }
+
+
+    /** Copy an array into a new array of another length, padded with zeros.
+     *  Does what {@code Arrays.copyOf()} does, which needs API 9. */
+    static byte[] copyOf(byte[] array, int length) {
+        byte[] res = new byte[length];
+        System.arraycopy(array, 0, res, 0, Math.min(array.length, length));
+        return res;
+    }
+
+
+    /** Copy an array into a new array of another length, padded with nulls.
+     *  Does what {@code Arrays.copyOf()} does, which needs API 9. */
+    @SuppressWarnings("unchecked")
+    static <T> T[] copyOf(T[] array, int length) {
+        T[] res = (T[]) Array.newInstance(array.getClass().getComponentType(), length);
+        System.arraycopy(array, 0, res, 0, Math.min(array.length, length));
+        return res;
+    }
+
+
+    /** Count the occurrences of a character in a UTF-8 file, without loading the file
+     *  into memory. Large files are memory-mapped and counted in parallel.
+     *  This does a lot of I/O, so do not call it from the UI thread.
+     *  @param file The file to read.
+     *  @param c The character to find. Cannot be a surrogate.
+     *  @return The total number of times c appears in the file.
+     *  @throws IOException If the file could not be read. */
+    public static long countChar(File file, char c) throws IOException {
+        return new FileCharCounter(new char[] {c}).count(file)[0];
+    }
+
+
+    /** Count the occurrences of several characters in a UTF-8 file, without loading
+     *  the file into memory. Large files are memory-mapped and counted in parallel.
+     *  This does a lot of I/O, so do not call it from the UI thread.
+     *  @param file The file to read.
+     *  @param needles The characters to find. Cannot contain surrogates.
+     *  @return The number of times each needle appears, in the order of the needles.
+     *  @throws IOException If the file could not be read. */
+    public static long[] countChars(File file, char... needles) throws IOException {
+        if(needles.length == 0) return new long[0];
+        return new FileCharCounter(needles).count(file);
+    }
+
+
     /** Provide with a dp measurement, to get a pixel measurement.
      *  @param c The activity context.
      *  @param dp The measure in dp
      *  @return The measure in px. */
     public static int dp(Context c, int dp) {
-        return (int) (TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, dp,
-                                                c.getResources().getDisplayMetrics()) + 0.5f);
+        return DimensionResolver.get(c).dp(dp);
     }
 
 
     /** Copy one file into another file.
+     *  Both streams are closed once the copy is complete.
      *  @param in An input stream positioned at the start of the source file.
      *  @param outs An output stream positioned at the start of the destination file.
      *  @throws IOException if any errors occur while copying. */
     public static void copyFile(InputStream in, OutputStream outs) throws IOException {
-        byte[] buffer = new byte[1024];
-        int length;
-        while(0 < (length = in.read(buffer)))
-            outs.write(buffer, 0, length);
-        outs.flush();
-        outs.close();
-        in.close();
+        new StreamCopier().copy(in, outs);
+    }
+
+    /** Copy one file into another file.
+     *  @param in An input stream positioned at the start of the source file.
+     *  @param outs An output stream positioned at the start of the destination file.
+     *  @param close True to close both streams once the copy is complete.
+     *  @return The number of bytes copied.
+     *  @throws IOException if any errors occur while copying. */
+    public static long copyFile(InputStream in, OutputStream outs, boolean close)
+            throws IOException {
+        return new StreamCopier().setCloseStreams(close)
+                                 .copy(in, outs);
+    }
+
+    /** Copy one file into another file.
+     *  Both streams are closed once the copy is complete.
+     *  @param in An input stream positioned at the start of the source file.
+     *  @param outs An output stream positioned at the start of the destination file.
+     *  @param listener Notified as the copy progresses.
+     *  @return The number of bytes copied.
+     *  @throws IOException if any errors occur while copying. */
+    public static long copyFile(InputStream in, OutputStream outs,
+                                StreamCopier.ProgressListener listener) throws IOException {
+        return new StreamCopier().setListener(listener)
+                                 .copy(in, outs);
+    }
+
+
+    /** Copy one file into another, computing a checksum of the data as it is copied.
+     *  The copy is resumable: if it fails, calling this again continues from the last
+     *  committed offset (see {@link StreamCopier#setResumable(boolean)}).
+     *  The destination is synced to disk once the copy is complete.
+     *  @param src The file to copy.
+     *  @param dst The file to copy into. Its contents are replaced.
+     *  @param checksum Reset, then updated with every byte of the destination (including
+     *                  the part copied by an earlier call that is resumed), such as
+     *                  {@link Crc32c}. Compare its value to the source's known checksum
+     *                  to verify the copy. The same instance may be passed to each retry.
+     *  @return The number of bytes copied by this call.
+     *  @throws IOException if any errors occur while copying. */
+    public static long copyFile(File src, File dst, Checksum checksum) throws IOException {
+        if(checksum != null) checksum.reset();
+        return new StreamCopier().setChecksum(checksum)
+                                 .setResumable(true)
+                                 .setSyncInterval(StreamCopier.SYNC_AT_END)
+                                 .copy(src, dst);
     }
 
 
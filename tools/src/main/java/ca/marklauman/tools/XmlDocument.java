@@ -0,0 +1,273 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+/** The tokens of an xml string displayed by {@link XmlTextView}.
+ *  The raw string is read once, from start to end. Its text content is copied out
+ *  (without the tags) and every tag is recorded with its position in that text.
+ *  Sections split by &lt;hr/&gt; are kept as ranges of the text and of the tags.
+ *  @author Mark Lauman */
+final class XmlDocument {
+
+    /** Tag type of an opening tag, like &lt;b&gt;. */
+    static final byte OPEN = 0;
+    /** Tag type of a closing tag, like &lt;/b&gt;. */
+    static final byte CLOSE = 1;
+    /** Tag type of a self-closing tag, like &lt;br/&gt;. */
+    static final byte SELF_CLOSE = 2;
+
+    /** The text content of every section, without tags. */
+    final String text;
+    /** Number of sections in the document. */
+    final int sectionCount;
+    /** Offset of each section in {@link #text}, followed by the length of the text. */
+    final int[] sectionStarts;
+    /** Index of the first tag of each section, followed by the number of tags. */
+    final int[] sectionTags;
+    /** Offset of each section in the raw xml string. */
+    final int[] rawStarts;
+    /** End of each section in the raw xml string (where its &lt;hr/&gt; starts). */
+    final int[] rawEnds;
+    /** Type of each tag. */
+    final byte[] tagTypes;
+    /** Offset of each tag in {@link #text}. */
+    final int[] tagPositions;
+    /** Id of each tag in the {@link XmlTagRegistry}, or {@link XmlTagRegistry#NO_ID}. */
+    final int[] tagIds;
+    /** Name of each tag. Trimmed and lower case. */
+    final String[] tagNames;
+
+
+    private XmlDocument(String text, int sectionCount, int[] sectionStarts, int[] sectionTags,
+                        int[] rawStarts, int[] rawEnds, byte[] tagTypes, int[] tagPositions,
+                        int[] tagIds, String[] tagNames) {
+        this.text = text;
+        this.sectionCount = sectionCount;
+        this.sectionStarts = sectionStarts;
+        this.sectionTags = sectionTags;
+        this.rawStarts = rawStarts;
+        this.rawEnds = rawEnds;
+        this.tagTypes = tagTypes;
+        this.tagPositions = tagPositions;
+        this.tagIds = tagIds;
+        this.tagNames = tagNames;
+    }
+
+
+    /** Read an xml string in one pass. Tag names are looked up in the
+     *  {@link XmlTagRegistry}, so registered tags cost no allocations. Other tags are
+     *  never added to it, so they cannot fill it up. Strings that were
+     *  tokenized at build time ({@link XmlPrecompiled}) are not read at all.
+     *  @param raw The xml string.
+     *  @param hrSplit True to start a new section at every "&lt;hr/&gt;".
+     *  @return The tokens of the string. */
+    static XmlDocument parse(String raw, boolean hrSplit) {
+        XmlDocument doc = XmlPrecompiled.find(raw, hrSplit);
+        if(doc != null) return doc;
+
+        Builder res = new Builder(raw);
+        int length = raw.length();
+        int pos = 0;
+        while(pos < length) {
+            int open = raw.indexOf('<', pos);
+            if(open < 0) open = length;
+            if(length <= open + 1) {
+                // No more tags. A '<' at the very end is just text.
+                res.text(pos, length);
+                break;
+            }
+            // Copy the text up to the next tag
+            res.text(pos, open);
+
+            // Find the bounds of the tag. A tag with no end runs to the end of the string.
+            int close = raw.indexOf('>', open + 1);
+            if(close < 0) close = length - 1;
+            pos = close + 1;
+
+            if(hrSplit && isHr(raw, open, close)) {
+                res.hr(open, pos);
+                continue;
+            }
+
+            // Determine the type and name of the tag
+            byte type = OPEN;
+            int nameStart = open + 1;
+            int nameEnd = close;
+            if(raw.charAt(open + 1) == '/') {
+                type = CLOSE;
+                nameStart++;
+            } else if(open + 1 < close && raw.charAt(close - 1) == '/') {
+                type = SELF_CLOSE;
+                nameEnd--;
+            }
+            if(nameEnd < nameStart) nameStart = nameEnd; // "</" at the end of the string
+            while(nameStart < nameEnd && raw.charAt(nameStart) <= ' ') nameStart++;
+            while(nameStart < nameEnd && raw.charAt(nameEnd - 1) <= ' ') nameEnd--;
+
+            int id = XmlTagRegistry.find(raw, nameStart, nameEnd);
+            res.tag(type, id, id != XmlTagRegistry.NO_ID ? XmlTagRegistry.name(id)
+                              : XmlTagRegistry.toName(raw, nameStart, nameEnd));
+        }
+        return res.finish();
+    }
+
+
+    /** Build the tokens of an xml string from the tags found in it beforehand.
+     *  Only the text between the tags is copied; the tags are not read again.
+     *  @param raw The xml string.
+     *  @param hrSplit True to start a new section at every "&lt;hr/&gt;".
+     *  @param tagStarts Position of the '&lt;' of each tag in the raw string.
+     *  @param tagEnds Position after the '&gt;' of each tag.
+     *  @param tagTypes Type of each tag, or {@link XmlPrecompiled#HR} for "&lt;hr/&gt;".
+     *  @param tagNames Name of each tag.
+     *  @return The tokens of the string, as {@link #parse(String, boolean)} would return them. */
+    static XmlDocument replay(String raw, boolean hrSplit, int[] tagStarts, int[] tagEnds,
+                              byte[] tagTypes, String[] tagNames) {
+        Builder res = new Builder(raw);
+        int pos = 0;
+        for(int i=0; i<tagStarts.length; i++) {
+            res.text(pos, tagStarts[i]);
+            pos = tagEnds[i];
+            byte type = tagTypes[i];
+            if(type == XmlPrecompiled.HR) {
+                if(hrSplit) {
+                    res.hr(tagStarts[i], pos);
+                    continue;
+                }
+                type = SELF_CLOSE;
+            }
+            // Looked up now, so tags registered after the tokens were read are found
+            String name = tagNames[i];
+            res.tag(type, XmlTagRegistry.find(name, 0, name.length()), name);
+        }
+        res.text(pos, raw.length());
+        return res.finish();
+    }
+
+
+    /** Check if a tag is exactly "&lt;hr/&gt;", with optional whitespace before the '/'.
+     *  @param raw The xml string.
+     *  @param open The position of the tag's '&lt;'.
+     *  @param close The position of the tag's '&gt;'. */
+    static boolean isHr(String raw, int open, int close) {
+        if(close < open + 4 || raw.charAt(close) != '>' || raw.charAt(close - 1) != '/'
+                || raw.charAt(open + 1) != 'h' || raw.charAt(open + 2) != 'r')
+            return false;
+        for(int i=open+3; i<close-1; i++) {
+            char c = raw.charAt(i);
+            if(c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r')
+                return false;
+        }
+        return true;
+    }
+
+
+    /** Collects the tokens of an xml string, in order. */
+    private static final class Builder {
+        /** The xml string. */
+        final String raw;
+        /** The text content, without tags. */
+        final char[] out;
+        /** Number of characters in {@link #out}. */
+        int outLength = 0;
+
+        /** Number of tags. */
+        int tagCount = 0;
+        /** See {@link XmlDocument#tagTypes}. */
+        byte[] types = new byte[8];
+        /** See {@link XmlDocument#tagPositions}. */
+        int[] positions = new int[8];
+        /** See {@link XmlDocument#tagIds}. */
+        int[] ids = new int[8];
+        /** See {@link XmlDocument#tagNames}. */
+        String[] names = new String[8];
+
+        /** Number of sections. */
+        int sections = 1;
+        /** See {@link XmlDocument#sectionStarts}. */
+        int[] starts = new int[4];
+        /** See {@link XmlDocument#sectionTags}. */
+        int[] tags = new int[4];
+        /** See {@link XmlDocument#rawStarts}. */
+        int[] rawStarts = new int[4];
+        /** See {@link XmlDocument#rawEnds}. */
+        int[] rawEnds = new int[4];
+        /** Number of sections to keep. Sections with no characters at the end
+         *  of the document are dropped. */
+        int keep = 1;
+        /** Offset of the current section in the raw string. */
+        int sectionRaw = 0;
+
+        Builder(String raw) {
+            this.raw = raw;
+            out = new char[raw.length()];
+        }
+
+        /** Copy part of the raw string into the text. */
+        void text(int start, int end) {
+            raw.getChars(start, end, out, outLength);
+            outLength += end - start;
+        }
+
+        /** Start a new section at an &lt;hr/&gt;.
+         *  @param open Position of the &lt;hr/&gt; in the raw string.
+         *  @param end Position after the end of the &lt;hr/&gt;. */
+        void hr(int open, int end) {
+            if(sections == starts.length) {
+                starts = Utils.copyOf(starts, sections * 2);
+                tags = Utils.copyOf(tags, sections * 2);
+                rawStarts = Utils.copyOf(rawStarts, sections * 2);
+                rawEnds = Utils.copyOf(rawEnds, sections * 2);
+            }
+            if(sectionRaw < open) keep = sections;
+            rawEnds[sections - 1] = open;
+            starts[sections] = outLength;
+            tags[sections] = tagCount;
+            rawStarts[sections] = end;
+            sections++;
+            sectionRaw = end;
+        }
+
+        /** Add a tag at the current end of the text. */
+        void tag(byte type, int id, String name) {
+            if(tagCount == types.length) {
+                types = Utils.copyOf(types, tagCount * 2);
+                positions = Utils.copyOf(positions, tagCount * 2);
+                ids = Utils.copyOf(ids, tagCount * 2);
+                names = Utils.copyOf(names, tagCount * 2);
+            }
+            types[tagCount] = type;
+            positions[tagCount] = outLength;
+            ids[tagCount] = id;
+            names[tagCount] = name;
+            tagCount++;
+        }
+
+        /** Build the document once every token has been added. */
+        XmlDocument finish() {
+            int length = raw.length();
+            if(sectionRaw < length) keep = sections;
+            if(keep == sections) rawEnds[keep - 1] = length;
+
+            starts = Utils.copyOf(starts, keep + 1);
+            tags = Utils.copyOf(tags, keep + 1);
+            starts[keep] = outLength;
+            tags[keep] = tagCount;
+            return new XmlDocument(new String(out, 0, outLength), keep, starts, tags,
+                                   Utils.copyOf(rawStarts, keep),
+                                   Utils.copyOf(rawEnds, keep),
+                                   types, positions, ids, names);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.support.v4.util.LruCache;
+import android.text.SpannableString;
+import android.text.Spanned;
+
+import java.util.Arrays;
+
+/** Process-wide cache of the sections built by {@link XmlTextView}, so text that was
+ *  parsed before only needs its spans applied again. Entries are keyed by the raw
+ *  text and everything else the sections were built with: the class of the view, the
+ *  hrSplit setting, the line height, the class of each tag handler and whether spans
+ *  were coalesced. The cache is limited by the number of characters it holds, and is
+ *  disabled until it is given a size.
+ *  @author Mark Lauman */
+final class XmlParseCache {
+
+    /** The cache, or null if it is disabled. */
+    private static LruCache<Key, Entry> cache = null;
+    /** Hits of caches that were replaced by {@link #setMaxSize(int)}. */
+    private static int oldHits = 0;
+    /** Misses of caches that were replaced by {@link #setMaxSize(int)}. */
+    private static int oldMisses = 0;
+
+
+    private XmlParseCache() {}
+
+
+    /** Set the number of characters the cache may hold. Clears the cache.
+     *  @param maxChars The size of the cache, or 0 to disable it. */
+    static synchronized void setMaxSize(int maxChars) {
+        if(cache != null) {
+            oldHits += cache.hitCount();
+            oldMisses += cache.missCount();
+            cache.evictAll();
+        }
+        if(maxChars <= 0) {
+            cache = null;
+            return;
+        }
+        cache = new LruCache<Key, Entry>(maxChars) {
+            @Override
+            protected int sizeOf(Key key, Entry value) {
+                return key.text.length() + value.length;
+            }
+        };
+    }
+
+
+    /** Check if the cache is enabled. */
+    static synchronized boolean isEnabled() {
+        return cache != null;
+    }
+
+
+    /** Get the sections cached for some text.
+     *  @param view The class of view that built the sections.
+     *  @param text The raw text.
+     *  @param hrSplit The hrSplit setting the sections were built with.
+     *  @param lineHeight The line height the sections were built with.
+     *  @param handlers The tag handlers the sections were built with.
+     *  @param coalesce True if the spans of the sections were coalesced.
+     *  @return The cached sections, or null if they are not in the cache. */
+    static Entry get(Class<?> view, String text, boolean hrSplit, int lineHeight,
+                     XmlTextView.TagHandler[] handlers, boolean coalesce) {
+        LruCache<Key, Entry> c;
+        synchronized(XmlParseCache.class) {
+            c = cache;
+        }
+        if(c == null) return null;
+        return c.get(new Key(view, text, hrSplit, lineHeight, handlers, coalesce));
+    }
+
+
+    /** Add sections to the cache. Does nothing if the cache is disabled.
+     *  @param view The class of view that built the sections.
+     *  @param text The raw text.
+     *  @param hrSplit The hrSplit setting the sections were built with.
+     *  @param lineHeight The line height the sections were built with.
+     *  @param handlers The tag handlers the sections were built with.
+     *  @param coalesce True if the spans of the sections were coalesced.
+     *  @param sections The text of every section.
+     *  @return The new cache entry, or null if the cache is disabled. */
+    static Entry put(Class<?> view, String text, boolean hrSplit, int lineHeight,
+                     XmlTextView.TagHandler[] handlers, boolean coalesce,
+                     CharSequence[] sections) {
+        LruCache<Key, Entry> c;
+        synchronized(XmlParseCache.class) {
+            c = cache;
+        }
+        if(c == null) return null;
+        Entry entry = new Entry(sections);
+        c.put(new Key(view, text, hrSplit, lineHeight, handlers, coalesce), entry);
+        return entry;
+    }
+
+
+    /** Number of times the cache has found the sections it was asked for. */
+    static synchronized int hitCount() {
+        return oldHits + (cache == null ? 0 : cache.hitCount());
+    }
+
+
+    /** Number of times the cache did not have the sections it was asked for. */
+    static synchronized int missCount() {
+        return oldMisses + (cache == null ? 0 : cache.missCount());
+    }
+
+
+    /** Identifies the raw text of a cache entry, and how its sections were built. */
+    private static final class Key {
+        /** The class of view that built the sections. */
+        final Class<?> view;
+        /** The raw text. */
+        final String text;
+        /** The hrSplit setting the sections were built with. */
+        final boolean hrSplit;
+        /** The line height the sections were built with. */
+        final int lineHeight;
+        /** Class of the handler of each tag id, without the trailing ids that have none.
+         *  Handlers of the same class are assumed to build the same spans, as views of
+         *  the same class are. */
+        final Class<?>[] handlerTypes;
+        /** True if the spans of the sections were coalesced. */
+        final boolean coalesce;
+
+        Key(Class<?> view, String text, boolean hrSplit, int lineHeight,
+            XmlTextView.TagHandler[] handlers, boolean coalesce) {
+            this.view = view;
+            this.text = text;
+            this.hrSplit = hrSplit;
+            this.lineHeight = lineHeight;
+            this.coalesce = coalesce;
+            int count = handlers.length;
+            while(0 < count && handlers[count - 1] == null) count--;
+            handlerTypes = new Class<?>[count];
+            for(int i=0; i<count; i++)
+                if(handlers[i] != null) handlerTypes[i] = handlers[i].getClass();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return view == other.view && hrSplit == other.hrSplit
+                   && lineHeight == other.lineHeight && coalesce == other.coalesce
+                   && text.equals(other.text) && Arrays.equals(handlerTypes, other.handlerTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = view.hashCode() * 31 + text.hashCode();
+            hash = hash * 31 + lineHeight;
+            hash = hash * 31 + Arrays.hashCode(handlerTypes);
+            return hash * 4 + (hrSplit ? 2 : 0) + (coalesce ? 1 : 0);
+        }
+    }
+
+
+    /** The built sections of one text. Holds each section's text and spans,
+     *  without the SpannableStringBuilder they were built in. */
+    static final class Entry {
+        /** Text of each section. */
+        private final String[] texts;
+        /** Spans of each section. Null for sections without spans. */
+        private final Object[][] spans;
+        /** Start, end and flags of every span of each section. */
+        private final int[][] ranges;
+        /** Total number of characters in the sections. */
+        final int length;
+
+        Entry(CharSequence[] sections) {
+            texts = new String[sections.length];
+            spans = new Object[sections.length][];
+            ranges = new int[sections.length][];
+            int total = 0;
+            for(int i=0; i<sections.length; i++) {
+                CharSequence section = sections[i];
+                texts[i] = section.toString();
+                total += texts[i].length();
+                if(!(section instanceof Spanned)) continue;
+
+                Spanned spanned = (Spanned) section;
+                Object[] sectionSpans = spanned.getSpans(0, spanned.length(), Object.class);
+                if(sectionSpans.length == 0) continue;
+                int[] sectionRanges = new int[sectionSpans.length * 3];
+                for(int s=0; s<sectionSpans.length; s++) {
+                    sectionRanges[s * 3] = spanned.getSpanStart(sectionSpans[s]);
+                    sectionRanges[s * 3 + 1] = spanned.getSpanEnd(sectionSpans[s]);
+                    sectionRanges[s * 3 + 2] = spanned.getSpanFlags(sectionSpans[s]);
+                }
+                spans[i] = sectionSpans;
+                ranges[i] = sectionRanges;
+            }
+            length = total;
+        }
+
+        /** Number of sections. */
+        int size() {
+            return texts.length;
+        }
+
+        /** Rebuild the text of a section.
+         *  @return A String if the section has no spans, or a new SpannableString. */
+        CharSequence section(int index) {
+            if(spans[index] == null) return texts[index];
+            SpannableString res = new SpannableString(texts[index]);
+            Object[] sectionSpans = spans[index];
+            int[] sectionRanges = ranges[index];
+            for(int s=0; s<sectionSpans.length; s++)
+                res.setSpan(sectionSpans[s], sectionRanges[s * 3], sectionRanges[s * 3 + 1],
+                            sectionRanges[s * 3 + 2]);
+            return res;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/** String resources tokenized at build time by {@code xml-strings.gradle}.
+ *  The tokens are read from the {@value #ASSET_DIR} folder of the assets the first
+ *  time a view asks for them, on the thread that parses text in the background.
+ *  Text parsed before they are read is parsed as normal. Strings are found by their raw text, so tokens are only
+ *  used for text that is exactly the text they were made from. Anything else
+ *  (and any string the build could not decode the way the platform does) is parsed
+ *  as normal.<br/>
+ *  <br/>
+ *  Loading a file only reads its index of string hashes. A string is decoded when
+ *  text with the same hash is looked up, so the strings of other configurations
+ *  (like other languages) are never decoded at all.<br/>
+ *  <br/>
+ *  Every file in the folder has this format (as written by {@link java.io.DataOutputStream}):
+ *  <pre>
+ *  int   {@value #MAGIC}, int {@value #VERSION}
+ *  int   number of names, then each name (writeUTF)
+ *  int   number of strings, then for each string, in order of hash:
+ *    int   hash of the string ({@link String#hashCode()})
+ *    int   offset of the string's record in the records
+ *  int   length of the records, then the records. Each record is:
+ *    int   length of the string in UTF-8, then its UTF-8 bytes
+ *    int   number of tags, then for each tag:
+ *      int   start, int end (position of the '&lt;', and after the '&gt;')
+ *      byte  type ({@link XmlDocument#OPEN}, {@link XmlDocument#CLOSE},
+ *            {@link XmlDocument#SELF_CLOSE} or {@link #HR})
+ *      int   index of the tag's name
+ *  </pre>
+ *  @author Mark Lauman */
+final class XmlPrecompiled {
+
+    /** Folder of the assets holding the tokens. */
+    static final String ASSET_DIR = "xmltextview";
+    /** First int of every file ("XMLT"). */
+    static final int MAGIC = 0x584D4C54;
+    /** Version of the file format. */
+    static final int VERSION = 2;
+    /** Tag type of an "&lt;hr/&gt;", which may split the text into sections. */
+    static final byte HR = 3;
+
+    /** True once the assets have been read (or are queued to be read). */
+    private static boolean loaded = false;
+    /** The tokens of each file. Null if there are none. Never modified once published. */
+    private static volatile Table[] tables = null;
+
+
+    private XmlPrecompiled() {}
+
+
+    /** Read the index of the tokens in the assets, if that has not been done yet.
+     *  The assets are read on the background parser thread, so text passed to
+     *  {@link XmlTextView#setTextAsync(String)} after this call uses the tokens.
+     *  @param c A context of the application. */
+    static void load(Context c) {
+        synchronized(XmlPrecompiled.class) {
+            if(loaded) return;
+            loaded = true;
+        }
+        final AssetManager assets = c.getAssets();
+        XmlTextView.getParser().execute(new Runnable() {
+            @Override
+            public void run() {
+                tables = readAll(assets);
+            }
+        });
+    }
+
+
+    /** Read the index of every file of tokens in the assets.
+     *  A file that cannot be read is skipped.
+     *  @return The tokens of each file, or null if there are none. */
+    private static Table[] readAll(AssetManager assets) {
+        String[] files;
+        try {
+            files = assets.list(ASSET_DIR);
+        } catch(IOException e) {
+            return null;
+        }
+        if(files == null || files.length == 0) return null;
+
+        ArrayList<Table> res = new ArrayList<>(files.length);
+        for(String file : files) {
+            InputStream in = null;
+            try {
+                in = assets.open(ASSET_DIR + "/" + file);
+                res.add(read(new DataInputStream(new BufferedInputStream(in))));
+            } catch(IOException ignored) {
+            } finally {
+                if(in != null) try {
+                    in.close();
+                } catch(IOException ignored) {}
+            }
+        }
+        return res.isEmpty() ? null : res.toArray(new Table[res.size()]);
+    }
+
+
+    /** Get the tokens of a string, if it was tokenized at build time.
+     *  @param raw The xml string.
+     *  @param hrSplit True to start a new section at every "&lt;hr/&gt;".
+     *  @return The tokens of the string, or null if it was not tokenized. */
+    static XmlDocument find(String raw, boolean hrSplit) {
+        Table[] all = tables;
+        if(all == null) return null;
+        int hash = raw.hashCode();
+        for(Table table : all) {
+            try {
+                XmlDocument doc = table.find(raw, hash, hrSplit);
+                if(doc != null) return doc;
+            } catch(IOException ignored) {
+                // A bad record. The string is parsed as normal.
+            }
+        }
+        return null;
+    }
+
+
+    /** Read the index of one file of tokens. The records are kept as they are.
+     *  @param in The file. */
+    private static Table read(DataInputStream in) throws IOException {
+        if(in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("Not an " + ASSET_DIR + " tokens file");
+
+        int nameCount = in.readInt();
+        if(nameCount < 0) throw new IOException("Bad " + ASSET_DIR + " tokens file");
+        String[] names = new String[nameCount];
+        for(int i=0; i<nameCount; i++)
+            names[i] = in.readUTF();
+
+        int count = in.readInt();
+        if(count < 0) throw new IOException("Bad " + ASSET_DIR + " tokens file");
+        int[] hashes = new int[count];
+        int[] offsets = new int[count];
+        for(int i=0; i<count; i++) {
+            hashes[i] = in.readInt();
+            offsets[i] = in.readInt();
+            if(i != 0 && hashes[i] < hashes[i - 1])
+                throw new IOException("Unsorted " + ASSET_DIR + " tokens file");
+        }
+
+        int length = in.readInt();
+        if(length < 0) throw new IOException("Bad " + ASSET_DIR + " tokens file");
+        byte[] records = new byte[length];
+        in.readFully(records);
+        for(int offset : offsets)
+            if(offset < 0 || length <= offset)
+                throw new IOException("Bad string in " + ASSET_DIR + " tokens file");
+        return new Table(names, hashes, offsets, records);
+    }
+
+
+    /** The tokens of one file. */
+    private static final class Table {
+        /** Name of each tag, by its index in the file. */
+        final String[] names;
+        /** Hash of each string, in order. */
+        final int[] hashes;
+        /** Offset of each string's record in {@link #records}. */
+        final int[] offsets;
+        /** The records of the strings, undecoded. */
+        final byte[] records;
+
+        Table(String[] names, int[] hashes, int[] offsets, byte[] records) {
+            this.names = names;
+            this.hashes = hashes;
+            this.offsets = offsets;
+            this.records = records;
+        }
+
+        /** Get the tokens of a string, if it is in this file. Only the strings with the
+         *  same hash are decoded.
+         *  @param raw The xml string.
+         *  @param hash The hash of the string.
+         *  @param hrSplit True to start a new section at every "&lt;hr/&gt;".
+         *  @return The tokens of the string, or null if it is not in this file.
+         *  @throws IOException if the record of the string is bad. */
+        XmlDocument find(String raw, int hash, boolean hrSplit) throws IOException {
+            // The first string with this hash
+            int low = 0;
+            int high = hashes.length;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(hashes[mid] < hash) low = mid + 1;
+                else high = mid;
+            }
+            for(int i=low; i<hashes.length && hashes[i] == hash; i++) {
+                int offset = offsets[i];
+                DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(records, offset, records.length - offset));
+                int length = in.readInt();
+                if(length < 0 || records.length - offset - 4 < length)
+                    throw new IOException("Bad string in " + ASSET_DIR + " tokens file");
+                if(!raw.equals(new String(records, offset + 4, length, "UTF-8"))) continue;
+                in.skipBytes(length);
+                return readTags(in, raw, hrSplit);
+            }
+            return null;
+        }
+
+        /** Read the tags of a string, and build its tokens from them. */
+        private XmlDocument readTags(DataInputStream in, String raw, boolean hrSplit)
+                throws IOException {
+            int count = in.readInt();
+            // Each tag takes 13 bytes
+            if(count < 0 || in.available() / 13 < count)
+                throw new IOException("Bad tags in " + ASSET_DIR + " tokens file");
+            int[] starts = new int[count];
+            int[] ends = new int[count];
+            byte[] types = new byte[count];
+            String[] tagNames = new String[count];
+            for(int t=0; t<count; t++) {
+                starts[t] = in.readInt();
+                ends[t] = in.readInt();
+                types[t] = in.readByte();
+                int name = in.readInt();
+                if(ends[t] < starts[t] || raw.length() < ends[t]
+                        || (t != 0 && starts[t] < ends[t - 1])
+                        || types[t] < 0 || HR < types[t]
+                        || name < 0 || names.length <= name)
+                    throw new IOException("Bad tag in " + ASSET_DIR + " tokens file");
+                tagNames[t] = names[name];
+            }
+            return XmlDocument.replay(raw, hrSplit, starts, ends, types, tagNames);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.support.v4.util.LruCache;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.SpannableStringBuilder;
+import android.util.AttributeSet;
+import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/** A version of {@link XmlTextView} for very long documents. Sections (separated by
+ *  &lt;hr/&gt; tags) are displayed in a RecyclerView, so only the sections near the
+ *  screen have views. A section's tags are only applied when it is about to be
+ *  displayed, and only the most recently displayed sections are kept.<br/>
+ *  <br/>
+ *  Subclasses work like those of {@link XmlTextView}: {@link #sectionStarted()} is
+ *  called before the tags of each section are passed to
+ *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)}. Sections are built
+ *  in the order they are scrolled to, and a section scrolled back to after a long time
+ *  may be built again.
+ *  @author Mark Lauman */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public abstract class XmlRecyclerView extends RecyclerView {
+
+    /** Number of sections on each side of a displayed section that are built ahead. */
+    private static final int PREFETCH_SECTIONS = 2;
+    /** Most built sections kept in memory. */
+    private static final int MAX_BUILT_SECTIONS = 32;
+
+    /** The AttributeSet passed to this view */
+    private final AttributeSet attrSet;
+    /** Provides the views of the sections. */
+    private final SectionAdapter adapter = new SectionAdapter();
+    /** Text of the sections built recently, by index. */
+    private final LruCache<Integer, CharSequence> built
+            = new LruCache<>(MAX_BUILT_SECTIONS);
+    /** Passes the tags without handlers to {@link #tagCompleted}. */
+    private final XmlSectionBuilder.Callback callback = new XmlSectionBuilder.Callback() {
+        @Override
+        public void tagCompleted(SpannableStringBuilder txt, String tag, int start, int end) {
+            XmlRecyclerView.this.tagCompleted(txt, tag, start, end);
+        }
+    };
+    /** Builds the sections around the last one displayed. */
+    private final Runnable prefetch = new Runnable() {
+        @Override
+        public void run() {
+            prefetchPosted = false;
+            if(doc == null) return;
+            int end = Math.min(doc.sectionCount, prefetchAround + PREFETCH_SECTIONS + 1);
+            for(int i=Math.max(0, prefetchAround - PREFETCH_SECTIONS); i<end; i++)
+                getSection(i);
+        }
+    };
+
+    /** Handlers registered for each tag id. Null entries have no handler. */
+    private XmlTextView.TagHandler[] handlers = new XmlTextView.TagHandler[0];
+    /** The builder of the section being built, or null if none is. */
+    private XmlSectionBuilder building = null;
+    /** The tokens of the text on display. Null if there is no text. */
+    private XmlDocument doc = null;
+    /** Current value of the display string. */
+    private String rawText = "";
+    /** True if we should split the text on "<hr/>" */
+    private boolean hrSplit = true;
+    /** Line height of the TextViews made from {@link #textRes}, or -1 if not known. */
+    private int sectionLineHeight = -1;
+    /** Incremented when the layouts change, so views of the old layouts are not reused. */
+    private int layoutVersion = 0;
+    /** The section that {@link #prefetch} builds around. */
+    private int prefetchAround = 0;
+    /** True if {@link #prefetch} is waiting to run. */
+    private boolean prefetchPosted = false;
+
+    /** Resource used for TextView elements */
+    private int textRes = 0;
+    /** Resource used for &lt;hr/&gt; elements */
+    private int hrRes = R.layout.xmltextview_default_hr;
+
+    public XmlRecyclerView(Context context) {
+        super(context);
+        attrSet = null;
+        init();
+    }
+
+    public XmlRecyclerView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        attrSet = attrs;
+        init();
+        parseAttributes(context, attrs, 0);
+    }
+
+    public XmlRecyclerView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        attrSet = attrs;
+        init();
+        parseAttributes(context, attrs, defStyleAttr);
+    }
+
+
+    /** Set up the layout and adapter of this view. */
+    private void init() {
+        setLayoutManager(new LinearLayoutManager(getContext()));
+        setAdapter(adapter);
+    }
+
+
+    /** Parse the AttributeSet passed to this view, and apply it. */
+    private void parseAttributes(Context c, AttributeSet attrs, int defStyleAttr) {
+        if(attrs == null) return;
+        TypedArray ta = c.getTheme()
+                         .obtainStyledAttributes(attrs, R.styleable.XmlRecyclerView,
+                                                 defStyleAttr, 0);
+        if(ta == null) return;
+        try {
+            XmlPrecompiled.load(c);
+            String txt = ta.getString(R.styleable.XmlRecyclerView_text);
+            if(txt != null) setText(txt);
+        } finally {
+            ta.recycle();
+        }
+    }
+
+
+    /** Set the text on display */
+    public void setText(int resourceId) {
+        XmlPrecompiled.load(getContext());
+        setText(getContext().getString(resourceId));
+    }
+
+
+    /** Set the text on display. Only the tokens of the text are read right away.
+     *  The tags of each section are applied when it is displayed. */
+    public void setText(String text) {
+        if(text == null) text = "";
+        if(rawText.equals(text)) return;
+        rawText = text;
+        rebuild();
+    }
+
+
+    /** If set to true, the view will split and add a horizontal rule when it encounters
+     *  the xml entity "&lt;hr/&gt;" or "&lt;hr /&gt;". Without it, the text is one section,
+     *  and is built all at once.<br/>
+     *  Defaults to {@code true} */
+    public void setHrSplit(boolean shouldSplit) {
+        if(hrSplit == shouldSplit) return;
+        hrSplit = shouldSplit;
+        if(doc != null) rebuild();
+    }
+
+
+    /** Change the TextView used for each section to the one specified.
+     *  @param textLayout The resource id of the view you wish to use.
+     *                    This layout can have a TextView as its root element, or contain
+     *                    a TextView with an id of {@link android.R.id#text1}. */
+    public void setTextViewRes(int textLayout) {
+        textRes = textLayout;
+        sectionLineHeight = -1;
+        layoutVersion++;
+        built.evictAll();
+        adapter.notifyDataSetChanged();
+    }
+
+
+    /** Change the default resource used to draw the hr lines. Allows for custom hr lines */
+    public void setHrRes(int hrLayout) {
+        hrRes = hrLayout;
+        layoutVersion++;
+        adapter.notifyDataSetChanged();
+    }
+
+
+    /** Number of sections in the text. */
+    public int getSectionCount() {
+        return doc == null ? 0 : doc.sectionCount;
+    }
+
+
+    /** Scroll to the start of a section.
+     *  @param section The index of the section. */
+    public void scrollToSection(int section) {
+        scrollToPosition(section * 2);
+    }
+
+
+    /** Tokenize the text and display its sections. */
+    private void rebuild() {
+        doc = XmlDocument.parse(rawText, hrSplit);
+        built.evictAll();
+        adapter.notifyDataSetChanged();
+    }
+
+
+    /** Get the text of a section, building it if needed. */
+    private CharSequence getSection(int section) {
+        CharSequence txt = built.get(section);
+        if(txt != null) return txt;
+
+        XmlSectionBuilder builder = new XmlSectionBuilder(callback, handlers,
+                                                          getSectionLineHeight());
+        XmlSectionBuilder outer = building;
+        building = builder;
+        try {
+            sectionStarted();
+            txt = builder.build(doc, section);
+        } finally {
+            building = outer;
+        }
+        built.put(section, txt);
+        return txt;
+    }
+
+
+    /** Build the sections around this one once the current frame is done. */
+    private void prefetchAround(int section) {
+        prefetchAround = section;
+        if(prefetchPosted) return;
+        prefetchPosted = post(prefetch);
+    }
+
+
+    /** Create the view of a section from the provided resource. */
+    private View createSection(ViewGroup parent) {
+        Context c = getContext();
+        if(textRes != 0) return LayoutInflater.from(c).inflate(textRes, parent, false);
+        TextView view = new TextView(c, attrSet);
+        view.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT,
+                                              LayoutParams.WRAP_CONTENT));
+        view.setGravity(Gravity.CENTER);
+        return view;
+    }
+
+
+    /** Get the line height of the text sections. */
+    private int getSectionLineHeight() {
+        if(sectionLineHeight < 0)
+            sectionLineHeight = XmlTextView.lineHeight(
+                    XmlTextView.findTextView(createSection(this)));
+        return sectionLineHeight;
+    }
+
+
+    /** Get the line height of the section being built, or of every section if none is. */
+    public int getLineHeight() {
+        return building != null ? building.lineHeight : getSectionLineHeight();
+    }
+
+
+    /** Checks to see if a given tag is active. Useful in
+     *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)}. */
+    protected boolean tagActive(String tagName) {
+        return building != null && building.isActive(tagName);
+    }
+
+
+    /** Checks to see if a given tag is active. Faster than {@link #tagActive(String)}.
+     *  @param tagId The id of the tag, from {@link #getTagId(String)}. */
+    protected boolean tagActive(int tagId) {
+        return building != null && building.isActive(tagId);
+    }
+
+
+    /** Get the id of a tag. Ids are the same in every XmlRecyclerView and XmlTextView,
+     *  so they can be kept in static fields.
+     *  @param tagName The name of the tag (everything between the '&lt;' and '&gt;').
+     *                 Case is ignored.
+     *  @return The tag's id.
+     *  @throws IllegalStateException if too many different tags have been used. */
+    protected static int getTagId(String tagName) {
+        return XmlTextView.getTagId(tagName);
+    }
+
+
+    /** Send every completion of a tag to a handler, instead of to
+     *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)}.
+     *  Call this before setting the text.
+     *  @param tagName The name of the tag. Case is ignored.
+     *  @param handler The handler for the tag, or null to remove its handler.
+     *  @return The tag's id. */
+    protected int registerTag(String tagName, XmlTextView.TagHandler handler) {
+        int id = getTagId(tagName);
+        if(handlers.length <= id)
+            handlers = Utils.copyOf(handlers, XmlTagRegistry.size());
+        handlers[id] = handler;
+        return id;
+    }
+
+
+    /** Called before the tags of a section are applied. */
+    protected abstract void sectionStarted();
+
+    /** Called when an xml tag closes.
+     *  @param txt The spannable string that will be displayed in the TextView.
+     *             Can be modified to have the desired effects. Your xml tags will have been
+     *             removed from this string before this point.
+     *  @param tag The tag that has just closed
+     * @param start The start position of the tag.
+     * @param end The end position of the tag. If this is the same as start, it is because the
+     *            tag is self-closing. */
+    protected abstract void tagCompleted(SpannableStringBuilder txt, String tag, int start, int end);
+
+
+    /** Provides a view for each section, with an hr view between each pair. */
+    private class SectionAdapter extends Adapter<SectionHolder> {
+        @Override
+        public int getItemCount() {
+            return doc == null ? 0 : doc.sectionCount * 2 - 1;
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            // Views made from old layouts have different types, so they are never reused
+            return layoutVersion * 2 + position % 2;
+        }
+
+        @Override
+        public SectionHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            if(viewType % 2 == 1)
+                return new SectionHolder(LayoutInflater.from(getContext())
+                                                       .inflate(hrRes, parent, false));
+            return new SectionHolder(createSection(parent));
+        }
+
+        @Override
+        public void onBindViewHolder(SectionHolder holder, int position) {
+            if(position % 2 == 1) return;
+            int section = position / 2;
+            CharSequence txt = getSection(section);
+            if(txt instanceof String) holder.text.setText(txt);
+            else holder.text.setText(txt, TextView.BufferType.SPANNABLE);
+            prefetchAround(section);
+        }
+    }
+
+
+    /** Holds the view of a section or hr. */
+    private static class SectionHolder extends ViewHolder {
+        /** The TextView of the section. Null for hr views. */
+        final TextView text;
+
+        SectionHolder(View view) {
+            super(view);
+            text = XmlTextView.findTextView(view);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import java.util.Arrays;
+
+/** A suffix array of the sections of {@link XmlTextView}, for finding text in them.
+ *  The sections are joined (each one ended by a '\0') and put in lower case. Every
+ *  suffix of that text is sorted, so the suffixes starting with a query are one range
+ *  of the array. Adding a character to a query narrows that range with two binary
+ *  searches, no matter how long the text is.
+ *  @author Mark Lauman */
+final class XmlSearchIndex {
+
+    /** The text of every section in lower case, each ended by a '\0'. */
+    private final char[] text;
+    /** Offset of each section in {@link #text}, followed by the length of the text. */
+    private final int[] sectionStarts;
+    /** Offset of every suffix of {@link #text}, in sorted order. */
+    private final int[] suffixes;
+
+
+    private XmlSearchIndex(char[] text, int[] sectionStarts, int[] suffixes) {
+        this.text = text;
+        this.sectionStarts = sectionStarts;
+        this.suffixes = suffixes;
+    }
+
+
+    /** Index the text of some sections. Takes O(n log n) time for n characters.
+     *  @param sections The text of each section. */
+    static XmlSearchIndex build(String[] sections) {
+        int length = 0;
+        for(String section : sections)
+            length += section.length() + 1;
+
+        char[] text = new char[length];
+        int[] starts = new int[sections.length + 1];
+        int pos = 0;
+        for(int i=0; i<sections.length; i++) {
+            starts[i] = pos;
+            String section = sections[i];
+            for(int c=0; c<section.length(); c++)
+                text[pos++] = Character.toLowerCase(section.charAt(c));
+            text[pos++] = '\0';
+        }
+        starts[sections.length] = length;
+        return new XmlSearchIndex(text, starts, sortSuffixes(text));
+    }
+
+
+    /** Sort the suffixes of a text by doubling the length of the prefixes compared
+     *  in each round, with a radix sort of the ranks from the round before. */
+    private static int[] sortSuffixes(char[] text) {
+        int n = text.length;
+        int[] sa = new int[n];
+        if(n == 0) return sa;
+        int[] rank = new int[n];
+        int[] tmp = new int[n];
+        int[] count = new int[Math.max(Character.MAX_VALUE + 1, n) + 1];
+
+        // Sort by the first character
+        for(char c : text)
+            count[c + 1]++;
+        for(int i=1; i<=Character.MAX_VALUE + 1; i++)
+            count[i] += count[i - 1];
+        for(int i=0; i<n; i++)
+            sa[count[text[i]]++] = i;
+        int classes = 1;
+        rank[sa[0]] = 0;
+        for(int i=1; i<n; i++) {
+            if(text[sa[i]] != text[sa[i - 1]]) classes++;
+            rank[sa[i]] = classes - 1;
+        }
+
+        for(int k=1; classes < n; k <<= 1) {
+            // Order by the rank of the second half. Suffixes without one come first.
+            int p = 0;
+            for(int i=n-k; i<n; i++)
+                tmp[p++] = i;
+            for(int i=0; i<n; i++)
+                if(k <= sa[i]) tmp[p++] = sa[i] - k;
+
+            // Stable sort by the rank of the first half
+            Arrays.fill(count, 0, classes + 1, 0);
+            for(int i=0; i<n; i++)
+                count[rank[i] + 1]++;
+            for(int i=1; i<=classes; i++)
+                count[i] += count[i - 1];
+            for(int i=0; i<n; i++)
+                sa[count[rank[tmp[i]]]++] = tmp[i];
+
+            // Rank the suffixes by their first 2k characters
+            tmp[sa[0]] = 0;
+            classes = 1;
+            for(int i=1; i<n; i++) {
+                int a = sa[i - 1];
+                int b = sa[i];
+                if(rank[a] != rank[b]
+                        || (a + k < n ? rank[a + k] : -1) != (b + k < n ? rank[b + k] : -1))
+                    classes++;
+                tmp[b] = classes - 1;
+            }
+            int[] swap = rank;
+            rank = tmp;
+            tmp = swap;
+        }
+        return sa;
+    }
+
+
+    /** Get the section containing an offset of the index. */
+    int section(int pos) {
+        int index = Arrays.binarySearch(sectionStarts, pos);
+        return index < 0 ? -index - 2 : index;
+    }
+
+
+    /** Get the offset of a section in the index. */
+    int sectionStart(int section) {
+        return sectionStarts[section];
+    }
+
+
+    /** A query on the index. Each character of the query narrows the range of suffixes
+     *  found for the characters before it, and the range found for each length of the
+     *  query is kept. Changing the query only searches again after the characters
+     *  it shares with the old query. */
+    final class Search {
+        /** The query, in lower case. */
+        private final StringBuilder query = new StringBuilder();
+        /** First suffix starting with each prefix of the query, by prefix length. */
+        private int[] lows = new int[16];
+        /** Suffix after the last one starting with each prefix of the query. */
+        private int[] highs = new int[16];
+
+        Search() {
+            highs[0] = suffixes.length;
+        }
+
+
+        /** Change the query. */
+        void setQuery(String newQuery) {
+            int length = newQuery.length();
+            int same = 0;
+            while(same < query.length() && same < length
+                    && query.charAt(same) == Character.toLowerCase(newQuery.charAt(same)))
+                same++;
+            query.setLength(same);
+            if(lows.length <= length) {
+                lows = Utils.copyOf(lows, length + 1);
+                highs = Utils.copyOf(highs, length + 1);
+            }
+            for(int i=same; i<length; i++) {
+                char c = Character.toLowerCase(newQuery.charAt(i));
+                query.append(c);
+                // The section ends can never be matched
+                if(c == '\0') {
+                    lows[i + 1] = highs[i + 1] = lows[i];
+                    continue;
+                }
+                lows[i + 1] = bound(lows[i], highs[i], i, c, false);
+                highs[i + 1] = bound(lows[i + 1], highs[i], i, c, true);
+            }
+        }
+
+
+        /** Number of times the query is found. */
+        int count() {
+            int length = query.length();
+            return highs[length] - lows[length];
+        }
+
+
+        /** Where the query is found.
+         *  @return The offset in the index of every match, in order. */
+        int[] positions() {
+            int length = query.length();
+            int[] res = new int[highs[length] - lows[length]];
+            System.arraycopy(suffixes, lows[length], res, 0, res.length);
+            Arrays.sort(res);
+            return res;
+        }
+
+
+        /** Binary search a range of suffixes that all start with the same characters,
+         *  by the next character.
+         *  @param low The first suffix of the range.
+         *  @param high The suffix after the range.
+         *  @param depth Number of characters the suffixes in the range share.
+         *  @param c The character to search for.
+         *  @param after False to find the first suffix with c or greater at the depth,
+         *               true to find the first suffix with a greater character.
+         *  @return The suffix found, or high if there is none. */
+        private int bound(int low, int high, int depth, char c, boolean after) {
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                int pos = suffixes[mid] + depth;
+                int found = pos < text.length ? text[pos] : -1;
+                if(found < c || (after && found == c)) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.text.SpannableStringBuilder;
+
+/** Applies the tags of an {@link XmlDocument} to the text of its sections, for
+ *  {@link XmlTextView} and {@link XmlRecyclerView}. Keeps track of the tags that are
+ *  active, so each thread building sections needs its own builder.
+ *  @author Mark Lauman */
+final class XmlSectionBuilder {
+
+    /** The value of getLineHeight() while building. */
+    final int lineHeight;
+    /** Receives the tags that have no handler. */
+    private final Callback callback;
+    /** Handlers registered for each tag id. Null entries have no handler. */
+    private final XmlTextView.TagHandler[] handlers;
+    /** True to add the time spent in the handlers and callback to {@link #tagNanos}. */
+    boolean timed = false;
+    /** Time spent in the handlers and callback while {@link #timed}, in nanoseconds. */
+    long tagNanos = 0;
+
+    /** Ids of the tags currently active in the parser */
+    private int[] activeIds = new int[8];
+    /** Names of the tags currently active in the parser */
+    private String[] activeTags = new String[8];
+    /** Starting points of each active tag */
+    private int[] activeStart = new int[8];
+    /** Number of active tags */
+    private int activeCount = 0;
+    /** Number of times each tag id is active */
+    private int[] activeCounts = new int[0];
+
+    XmlSectionBuilder(Callback callback, XmlTextView.TagHandler[] handlers, int lineHeight) {
+        this.callback = callback;
+        this.handlers = handlers;
+        this.lineHeight = lineHeight;
+    }
+
+
+    /** Apply the tags of one section to its text.
+     *  @param doc The parsed document.
+     *  @param section The index of the section.
+     *  @return The text of the section. A String if it has no tags,
+     *  or the SpannableStringBuilder passed to the callbacks if it does. */
+    CharSequence build(XmlDocument doc, int section) {
+        if(doc.sectionTags[section] != doc.sectionTags[section + 1]) return open(doc, section);
+        clearActiveTags();
+        return doc.text.substring(doc.sectionStarts[section], doc.sectionStarts[section + 1]);
+    }
+
+
+    /** Apply the tags of one section to its text, and keep its open tags so more
+     *  can be added with {@link #append(XmlDocument, int, SpannableStringBuilder)}.
+     *  @param doc The parsed document.
+     *  @param section The index of the section.
+     *  @return The text of the section. */
+    SpannableStringBuilder open(XmlDocument doc, int section) {
+        // Tags left open in the last section do not carry over
+        clearActiveTags();
+        SpannableStringBuilder txt = new SpannableStringBuilder();
+        append(doc, section, txt);
+        return txt;
+    }
+
+
+    /** Add a section to the end of some text, continuing the tags open in that text.
+     *  @param doc The parsed document.
+     *  @param section The index of the section.
+     *  @param txt The text to add the section to. */
+    void append(XmlDocument doc, int section, SpannableStringBuilder txt) {
+        int textStart = doc.sectionStarts[section];
+        int textEnd = doc.sectionStarts[section + 1];
+        int firstTag = doc.sectionTags[section];
+        int endTag = doc.sectionTags[section + 1];
+        int length = textEnd - textStart;
+
+        txt.append(doc.text, textStart, textEnd);
+        for(int t=firstTag; t<endTag; t++) {
+            int id = doc.tagIds[t];
+            String tag = doc.tagNames[t];
+            // Tag positions move with any text tagCompleted adds or removes
+            int pos = doc.tagPositions[t] - textStart + txt.length() - length;
+            switch(doc.tagTypes[t]) {
+                case XmlDocument.SELF_CLOSE:
+                    completeTag(txt, id, tag, pos, pos);
+                    break;
+                case XmlDocument.OPEN:
+                    pushTag(id, tag, pos);
+                    break;
+                case XmlDocument.CLOSE:
+                    // Search for the first open tag that matches.
+                    int match = activeCount - 1;
+                    while(0 <= match && (activeIds[match] != id
+                            || id == XmlTagRegistry.NO_ID && !activeTags[match].equals(tag)))
+                        match--;
+                    // Close all tags inside this tag.
+                    while(0 <= match && match < activeCount) {
+                        int top = activeCount - 1;
+                        completeTag(txt, activeIds[top], activeTags[top], activeStart[top], pos);
+                        popTag();
+                        pos = doc.tagPositions[t] - textStart + txt.length() - length;
+                    }
+                    break;
+            }
+        }
+    }
+
+
+    /** Move the start of every open tag. Used when the text they are in is moved.
+     *  @param offset The distance to move them. */
+    void moveActiveTags(int offset) {
+        for(int i=0; i<activeCount; i++)
+            activeStart[i] += offset;
+    }
+
+
+    /** Checks to see if a given tag is active. */
+    boolean isActive(String tagName) {
+        int id = XmlTagRegistry.find(tagName, 0, tagName.length());
+        if(id != XmlTagRegistry.NO_ID) return isActive(id);
+        for(int i=0; i<activeCount; i++)
+            if(activeIds[i] == XmlTagRegistry.NO_ID && activeTags[i].equals(tagName))
+                return true;
+        return false;
+    }
+
+
+    /** Checks to see if a given tag id is active. */
+    boolean isActive(int tagId) {
+        return 0 <= tagId && tagId < activeCounts.length && 0 < activeCounts[tagId];
+    }
+
+
+    /** Add a tag to the active tags. */
+    private void pushTag(int id, String tag, int start) {
+        if(activeCount == activeTags.length) {
+            activeIds = Utils.copyOf(activeIds, activeCount * 2);
+            activeTags = Utils.copyOf(activeTags, activeCount * 2);
+            activeStart = Utils.copyOf(activeStart, activeCount * 2);
+        }
+        activeIds[activeCount] = id;
+        activeTags[activeCount] = tag;
+        activeStart[activeCount] = start;
+        activeCount++;
+        if(id == XmlTagRegistry.NO_ID) return;
+        if(activeCounts.length <= id)
+            activeCounts = Utils.copyOf(activeCounts, XmlTagRegistry.size());
+        activeCounts[id]++;
+    }
+
+
+    /** Remove the last tag from the active tags. */
+    private void popTag() {
+        activeCount--;
+        int id = activeIds[activeCount];
+        if(id != XmlTagRegistry.NO_ID) activeCounts[id]--;
+        activeTags[activeCount] = null;
+    }
+
+
+    /** Remove every tag from the active tags. */
+    private void clearActiveTags() {
+        while(0 < activeCount) popTag();
+    }
+
+
+    /** Pass a completed tag to its handler, or to the callback if it has none. */
+    private void completeTag(SpannableStringBuilder txt, int id, String tag, int start, int end) {
+        long begin = timed ? System.nanoTime() : 0;
+        if(0 <= id && id < handlers.length && handlers[id] != null)
+            handlers[id].tagCompleted(txt, start, end);
+        else callback.tagCompleted(txt, tag, start, end);
+        if(timed) tagNanos += System.nanoTime() - begin;
+    }
+
+
+    /** Receives the tags of a section as they close. */
+    interface Callback {
+        /** Called when a tag without a handler closes.
+         *  @see XmlTextView#tagCompleted(SpannableStringBuilder, String, int, int) */
+        void tagCompleted(SpannableStringBuilder txt, String tag, int start, int end);
+    }
+}
@@ -0,0 +1,212 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.text.Spannable;
+import android.text.style.AbsoluteSizeSpan;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ParagraphStyle;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Merges the identical character spans of a text built by {@link XmlTextView}.
+ *  Spans that touch or overlap another span with the same style and flags are
+ *  replaced by one span covering all of them, so the text draws the same
+ *  with fewer span objects.<br/>
+ *  <br/>
+ *  Spans are identical if they are of the same platform class with the same value
+ *  ({@link StyleSpan}, {@link UnderlineSpan}, {@link StrikethroughSpan},
+ *  {@link ForegroundColorSpan}, {@link BackgroundColorSpan}, {@link TypefaceSpan},
+ *  {@link AbsoluteSizeSpan} and {@link URLSpan}), or if they are equal by
+ *  {@link Object#equals(Object)}. Other spans are never merged.
+ *  Styles that add to each other (bold, underline...) are always merged. Styles that
+ *  replace each other (colours, sizes...) are only merged where no other span could
+ *  be drawn in between them, so the order the spans are applied in cannot matter.
+ *  @author Mark Lauman */
+final class XmlSpanCoalescer {
+
+    /** Orders spans by their start, then by their end. */
+    private static final Comparator<int[]> BY_START = new Comparator<int[]>() {
+        @Override
+        public int compare(int[] a, int[] b) {
+            if(a[0] != b[0]) return a[0] < b[0] ? -1 : 1;
+            return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+        }
+    };
+
+
+    private XmlSpanCoalescer() {}
+
+
+    /** Merge the identical spans of a text.
+     *  @param txt The text. Its spans are changed in place.
+     *  @return The number of spans removed. */
+    static int coalesce(Spannable txt) {
+        CharacterStyle[] spans = txt.getSpans(0, txt.length(), CharacterStyle.class);
+        if(spans.length < 2) return 0;
+
+        // Group the spans that could be merged. Count how many spans that
+        // replace a style cover each character.
+        int[] replaced = new int[txt.length() + 1];
+        LinkedHashMap<Key, ArrayList<int[]>> groups = new LinkedHashMap<>();
+        for(int i=0; i<spans.length; i++) {
+            CharacterStyle span = spans[i];
+            int start = txt.getSpanStart(span);
+            int end = txt.getSpanEnd(span);
+            Key key = key(span, txt.getSpanFlags(span));
+            if(key == null || !key.adds) {
+                replaced[start]++;
+                replaced[end]--;
+            }
+            if(key == null) continue;
+            ArrayList<int[]> group = groups.get(key);
+            if(group == null) {
+                group = new ArrayList<>(4);
+                groups.put(key, group);
+            }
+            group.add(new int[] {start, end, i});
+        }
+        for(int i=1; i<replaced.length; i++)
+            replaced[i] += replaced[i - 1];
+
+        int removed = 0;
+        for(Map.Entry<Key, ArrayList<int[]>> entry : groups.entrySet()) {
+            Key key = entry.getKey();
+            ArrayList<int[]> group = entry.getValue();
+            if(group.size() < 2) continue;
+            int[][] ranges = group.toArray(new int[group.size()][]);
+            Arrays.sort(ranges, BY_START);
+
+            // Merge each run of spans that touch or overlap
+            int first = 0;
+            int end = ranges[0][1];
+            for(int i=1; i<=ranges.length; i++) {
+                if(i < ranges.length && ranges[i][0] <= end) {
+                    end = Math.max(end, ranges[i][1]);
+                    continue;
+                }
+                if(1 < i - first && (key.adds || alone(ranges, first, i, end, replaced)))
+                    removed += merge(txt, spans, ranges, first, i, end, key.flags);
+                if(i < ranges.length) {
+                    first = i;
+                    end = ranges[i][1];
+                }
+            }
+        }
+        return removed;
+    }
+
+
+    /** Check that no span but the ones in a run replaces a style in the range of the run.
+     *  @param ranges The start, end and index of each span, sorted by start.
+     *  @param first The first span of the run.
+     *  @param last The index after the last span of the run.
+     *  @param end The end of the run.
+     *  @param replaced Number of spans that replace a style covering each character. */
+    private static boolean alone(int[][] ranges, int first, int last, int end, int[] replaced) {
+        int start = ranges[first][0];
+        int[] own = new int[end - start + 1];
+        for(int i=first; i<last; i++) {
+            own[ranges[i][0] - start]++;
+            own[ranges[i][1] - start]--;
+        }
+        int count = 0;
+        for(int c=start; c<end; c++) {
+            count += own[c - start];
+            if(replaced[c] != count) return false;
+        }
+        return true;
+    }
+
+
+    /** Replace a run of spans by its first span.
+     *  @return The number of spans removed. */
+    private static int merge(Spannable txt, CharacterStyle[] spans, int[][] ranges,
+                             int first, int last, int end, int flags) {
+        txt.setSpan(spans[ranges[first][2]], ranges[first][0], end, flags);
+        for(int i=first+1; i<last; i++)
+            txt.removeSpan(spans[ranges[i][2]]);
+        return last - first - 1;
+    }
+
+
+    /** Get the key spans identical to this one share.
+     *  @return The key, or null if the span is never merged. */
+    private static Key key(CharacterStyle span, int flags) {
+        if(span instanceof ParagraphStyle) return null;
+        Class<?> type = span.getClass();
+        if(type == StyleSpan.class)
+            return new Key(type, ((StyleSpan) span).getStyle(), flags, true);
+        if(type == UnderlineSpan.class || type == StrikethroughSpan.class)
+            return new Key(type, null, flags, true);
+        if(type == ForegroundColorSpan.class)
+            return new Key(type, ((ForegroundColorSpan) span).getForegroundColor(), flags, false);
+        if(type == BackgroundColorSpan.class)
+            return new Key(type, ((BackgroundColorSpan) span).getBackgroundColor(), flags, false);
+        if(type == TypefaceSpan.class)
+            return new Key(type, ((TypefaceSpan) span).getFamily(), flags, false);
+        if(type == AbsoluteSizeSpan.class) {
+            AbsoluteSizeSpan size = (AbsoluteSizeSpan) span;
+            return new Key(type, size.getDip() ? -size.getSize() - 1 : size.getSize(),
+                           flags, false);
+        }
+        if(type == URLSpan.class)
+            return new Key(type, ((URLSpan) span).getURL(), flags, false);
+        return new Key(type, span, flags, false);
+    }
+
+
+    /** Identifies spans that can be merged. */
+    private static final class Key {
+        /** The class of the spans. */
+        final Class<?> type;
+        /** The value of the spans, or the span itself for other classes. */
+        final Object value;
+        /** The flags of the spans. */
+        final int flags;
+        /** True if the style adds to the other styles, instead of replacing them. */
+        final boolean adds;
+
+        Key(Class<?> type, Object value, int flags, boolean adds) {
+            this.type = type;
+            this.value = value;
+            this.flags = flags;
+            this.adds = adds;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return type == other.type && flags == other.flags
+                    && (value == null ? other.value == null : value.equals(other.value));
+        }
+
+        @Override
+        public int hashCode() {
+            return (type.hashCode() * 31 + (value == null ? 0 : value.hashCode())) * 31 + flags;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.text.Spanned;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/** The spans of one type in a section of {@link XmlTextView}, sorted by their offset.
+ *  Finding the span at an offset is a binary search, instead of a
+ *  {@link Spanned#getSpans(int, int, Class)} over the whole text.
+ *  @author Mark Lauman */
+final class XmlSpanIndex<T> {
+
+    /** The spans, sorted by their start. */
+    private final T[] spans;
+    /** Start of each span. */
+    private final int[] starts;
+    /** End of each span. */
+    private final int[] ends;
+    /** Greatest end of the spans up to and including each one. */
+    private final int[] maxEnds;
+    /** Position of each span in the order {@link Spanned#getSpans(int, int, Class)}
+     *  returned them. */
+    private final int[] order;
+
+
+    private XmlSpanIndex(T[] spans, int[] starts, int[] ends, int[] maxEnds, int[] order) {
+        this.spans = spans;
+        this.starts = starts;
+        this.ends = ends;
+        this.maxEnds = maxEnds;
+        this.order = order;
+    }
+
+
+    /** Index the spans in part of a text.
+     *  @param txt The text. Text without spans gives an empty index.
+     *  @param start The start of the part. Offsets in the index are relative to this.
+     *  @param end The end of the part.
+     *  @param type The type of spans to index. */
+    @SuppressWarnings("unchecked")
+    static <T> XmlSpanIndex<T> build(CharSequence txt, int start, int end, Class<T> type) {
+        if(!(txt instanceof Spanned)) {
+            int[] none = new int[0];
+            return new XmlSpanIndex<>((T[]) Array.newInstance(type, 0), none, none, none, none);
+        }
+        Spanned spanned = (Spanned) txt;
+        T[] found = spanned.getSpans(start, end, type);
+        int count = found.length;
+        // Sort by start, keeping the original position in the low bits
+        long[] keys = new long[count];
+        for(int i=0; i<count; i++)
+            keys[i] = (long) Math.max(0, spanned.getSpanStart(found[i]) - start) << 32 | i;
+        Arrays.sort(keys);
+
+        T[] spans = found.clone();
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        int[] maxEnds = new int[count];
+        int[] order = new int[count];
+        int maxEnd = 0;
+        for(int i=0; i<count; i++) {
+            int index = (int) keys[i];
+            spans[i] = found[index];
+            starts[i] = (int) (keys[i] >>> 32);
+            ends[i] = Math.min(end, spanned.getSpanEnd(found[index])) - start;
+            maxEnd = Math.max(maxEnd, ends[i]);
+            maxEnds[i] = maxEnd;
+            order[i] = index;
+        }
+        return new XmlSpanIndex<>(spans, starts, ends, maxEnds, order);
+    }
+
+
+    /** Find the span at an offset. Like {@link Spanned#getSpans(int, int, Class)}
+     *  with the offset as its start and end, spans that start or end at the offset
+     *  are included. If several spans match, the one getSpans would list first is used.
+     *  @param offset The offset, relative to the start of the index.
+     *  @return The span, or null if there is none. */
+    T find(int offset) {
+        // The last span starting at or before the offset
+        int low = 0;
+        int high = starts.length;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(starts[mid] <= offset) low = mid + 1;
+            else high = mid;
+        }
+
+        T res = null;
+        int best = Integer.MAX_VALUE;
+        for(int i=low-1; 0 <= i && offset <= maxEnds[i]; i--) {
+            if(offset <= ends[i] && order[i] < best) {
+                res = spans[i];
+                best = order[i];
+            }
+        }
+        return res;
+    }
+
+
+    /** Every span in the index, in the order they start. */
+    T[] spans() {
+        return spans.clone();
+    }
+}
@@ -0,0 +1,155 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+/** Process-wide table giving every tag name registered with {@link XmlTextView} a
+ *  small id. Only {@link XmlTextView#getTagId(String)} adds names; the parser just
+ *  looks them up. Names are matched straight from the raw xml, ignoring case, so
+ *  looking up a tag allocates nothing. The table is copied when a name is added,
+ *  so lookups never lock.
+ *  @author Mark Lauman */
+final class XmlTagRegistry {
+
+    /** Id of tags that are not in the registry. */
+    static final int NO_ID = -1;
+    /** Most names the registry will hold. */
+    static final int MAX_TAGS = 1024;
+
+    /** The current table. Replaced (never modified) when a name is added. */
+    private static volatile Table table = new Table(new String[0], new int[0], new int[16]);
+
+
+    private XmlTagRegistry() {}
+
+
+    /** Get the id of a tag name, ignoring case.
+     *  @param raw The string containing the name.
+     *  @param start The first character of the name.
+     *  @param end The character after the end of the name.
+     *  @return The id of the name, or {@link #NO_ID} if it is not registered. */
+    static int find(CharSequence raw, int start, int end) {
+        return table.find(raw, start, end, hash(raw, start, end));
+    }
+
+
+    /** Get the id of a tag name, adding it to the registry if needed.
+     *  @param raw The string containing the name.
+     *  @param start The first character of the name.
+     *  @param end The character after the end of the name.
+     *  @return The id of the name, or {@link #NO_ID} if the registry is full. */
+    static int intern(CharSequence raw, int start, int end) {
+        int hash = hash(raw, start, end);
+        int id = table.find(raw, start, end, hash);
+        if(id != NO_ID) return id;
+
+        synchronized(XmlTagRegistry.class) {
+            Table old = table;
+            id = old.find(raw, start, end, hash);
+            if(id != NO_ID || MAX_TAGS <= old.names.length) return id;
+
+            table = old.add(toName(raw, start, end), hash);
+            return old.names.length;
+        }
+    }
+
+
+    /** Get the name of a tag.
+     *  @param id The id of the tag.
+     *  @return Its name, in lower case. */
+    static String name(int id) {
+        return table.names[id];
+    }
+
+
+    /** Number of names in the registry. Ids are always less than this. */
+    static int size() {
+        return table.names.length;
+    }
+
+
+    /** Copy a tag name out of the raw xml, in lower case. */
+    static String toName(CharSequence raw, int start, int end) {
+        char[] name = new char[end - start];
+        for(int i=start; i<end; i++)
+            name[i - start] = Character.toLowerCase(raw.charAt(i));
+        return new String(name);
+    }
+
+
+    /** Hash a name, ignoring case. */
+    private static int hash(CharSequence raw, int start, int end) {
+        int hash = 0;
+        for(int i=start; i<end; i++)
+            hash = 31 * hash + Character.toLowerCase(raw.charAt(i));
+        return hash;
+    }
+
+
+    /** An open-addressed hash table of names. Never modified once published. */
+    private static final class Table {
+        /** Name of each id. */
+        final String[] names;
+        /** Hash of each name. */
+        final int[] hashes;
+        /** Slots of the hash table, holding an id + 1, or 0 if empty. */
+        final int[] slots;
+
+        Table(String[] names, int[] hashes, int[] slots) {
+            this.names = names;
+            this.hashes = hashes;
+            this.slots = slots;
+        }
+
+        /** Find a name in the table.
+         *  @return Its id, or {@link #NO_ID} if it is not there. */
+        int find(CharSequence raw, int start, int end, int hash) {
+            int mask = slots.length - 1;
+            for(int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int id = slots[slot] - 1;
+                if(hashes[id] == hash && matches(names[id], raw, start, end)) return id;
+            }
+            return NO_ID;
+        }
+
+        /** Copy this table with another name added. */
+        Table add(String name, int hash) {
+            int id = names.length;
+            String[] newNames = new String[id + 1];
+            int[] newHashes = new int[id + 1];
+            System.arraycopy(names, 0, newNames, 0, id);
+            System.arraycopy(hashes, 0, newHashes, 0, id);
+            newNames[id] = name;
+            newHashes[id] = hash;
+
+            // Keep the table at most half full
+            int size = slots.length;
+            while(size < newNames.length * 2) size *= 2;
+            int[] newSlots = new int[size];
+            for(int i=0; i<newNames.length; i++) {
+                int slot = newHashes[i] & (size - 1);
+                while(newSlots[slot] != 0) slot = (slot + 1) & (size - 1);
+                newSlots[slot] = i + 1;
+            }
+            return new Table(newNames, newHashes, newSlots);
+        }
+
+        /** Check if a name matches part of the raw xml, ignoring the case of the xml. */
+        private static boolean matches(String name, CharSequence raw, int start, int end) {
+            if(name.length() != end - start) return false;
+            for(int i=start; i<end; i++)
+                if(name.charAt(i - start) != Character.toLowerCase(raw.charAt(i))) return false;
+            return true;
+        }
+    }
+}
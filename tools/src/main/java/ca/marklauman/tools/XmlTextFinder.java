@@ -0,0 +1,339 @@
+/* Copyright (c) 2016 Mark Christopher Lauman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.                                        */
+package ca.marklauman.tools;
+
+import android.os.Handler;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.view.ViewTreeObserver;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/** Finds text in the sections of an {@link XmlTextView}, for
+ *  {@link XmlTextView#find(String)}. Keeps an {@link XmlSearchIndex} of the text on
+ *  display, built on the background parser thread once the text stops changing, and
+ *  highlights the matches of the sections as they scroll onto the screen.
+ *  Only used on the main thread.
+ *  @author Mark Lauman */
+final class XmlTextFinder {
+    /** Colour of the highlight behind each match, by default. */
+    private static final int DEFAULT_COLOR = 0x66FFEB3B;
+    /** Milliseconds {@link XmlTextView#appendText(String)} must stop being called for
+     *  before the text is indexed again. */
+    private static final int APPEND_INDEX_DELAY = 300;
+
+    /** The view whose text is found. */
+    private final XmlTextView view;
+    /** True to index the text on display. */
+    private boolean enabled = false;
+    /** Index of the text on display. Null while it is being built, or if find is off. */
+    private XmlSearchIndex searchIndex = null;
+    /** The query last run on {@link #searchIndex}. */
+    private XmlSearchIndex.Search search = null;
+    /** Incremented whenever the text on display changes, to drop outdated indexes. */
+    private volatile int indexGeneration = 0;
+    /** Text of each section as it was last indexed. Never changed once added, so it can
+     *  be read on any thread. Only kept while find is on. */
+    private final ArrayList<CharSequence> indexSources = new ArrayList<>();
+    /** First section whose text changed since it was added to {@link #indexSources}. */
+    private int staleSection = 0;
+    /** Builds the index once the text stops changing. */
+    private final Runnable indexer = new Runnable() {
+        @Override
+        public void run() {
+            buildIndex();
+        }
+    };
+    /** The text being found. Empty if there is none. */
+    private String query = "";
+    /** Offset of each match in {@link #searchIndex}, in order. Null if there are none. */
+    private int[] matches = null;
+    /** Sections whose matches are highlighted. */
+    private final BitSet highlighted = new BitSet();
+    /** Colour of the highlight behind each match. */
+    private int color = DEFAULT_COLOR;
+    /** Told when the matches of a query are found. */
+    private XmlTextView.FindListener listener = null;
+    /** First and last section on screen. */
+    private final int[] visible = new int[2];
+    /** Highlights the matches of the sections scrolled onto the screen. */
+    private final ViewTreeObserver.OnPreDrawListener highlighter =
+            new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            highlightVisible();
+            return true;
+        }
+    };
+
+
+    XmlTextFinder(XmlTextView view) {
+        this.view = view;
+    }
+
+
+    /** Turn the index on or off. See {@link XmlTextView#setFindEnabled(boolean)}. */
+    void setEnabled(boolean enabled) {
+        if(this.enabled == enabled) return;
+        this.enabled = enabled;
+        if(!enabled) {
+            query = "";
+            indexSources.clear();
+            staleSection = 0;
+        }
+        clearMatches();
+        indexText(0);
+    }
+
+
+    /** Find a query in the text on display. See {@link XmlTextView#find(String)}.
+     *  @return The number of matches, or -1 if the index is not ready. */
+    int find(String query) {
+        if(query == null) query = "";
+        setEnabled(true);
+        this.query = query;
+        clearMatches();
+        if(search == null) return query.length() == 0 ? 0 : -1;
+        return runFind();
+    }
+
+
+    /** Number of matches found by the last {@link #find(String)}. */
+    int getMatchCount() {
+        return matches == null ? 0 : matches.length;
+    }
+
+
+    /** Get the section holding a match.
+     *  @throws IndexOutOfBoundsException if there is no such match. */
+    int getMatchSection(int match) {
+        return searchIndex.section(matchPosition(match));
+    }
+
+
+    /** Get the offset of a match in its section.
+     *  @throws IndexOutOfBoundsException if there is no such match. */
+    int getMatchOffset(int match) {
+        int pos = matchPosition(match);
+        return pos - searchIndex.sectionStart(searchIndex.section(pos));
+    }
+
+
+    /** Set the colour of the highlight behind each match. */
+    void setHighlightColor(int color) {
+        this.color = color;
+        clearHighlights();
+        highlightVisible();
+    }
+
+
+    /** Set the listener told when the matches of a query are found. Null for none. */
+    void setListener(XmlTextView.FindListener listener) {
+        this.listener = listener;
+    }
+
+
+    /** Start highlighting the matches that scroll onto the screen. */
+    void attach(ViewTreeObserver observer) {
+        observer.addOnPreDrawListener(highlighter);
+    }
+
+
+    /** Stop highlighting the matches that scroll onto the screen. */
+    void detach(ViewTreeObserver observer) {
+        observer.removeOnPreDrawListener(highlighter);
+    }
+
+
+    /** Forget the matches on display, and remove their highlights.
+     *  Call this before the views of the sections change. */
+    void clearMatches() {
+        clearHighlights();
+        matches = null;
+    }
+
+
+    /** Index new sections once they are on display. The parsed sections are never
+     *  changed, so they are indexed as they are.
+     *  @param texts The text of each section. */
+    void textShown(CharSequence[] texts) {
+        indexSources.clear();
+        if(enabled) indexSources.addAll(Arrays.asList(texts));
+        staleSection = indexSources.size();
+        indexText(0);
+    }
+
+
+    /** Forget the matches before text is appended, and index the text once the appends
+     *  pause.
+     *  @param firstChanged The first section the appended text changes. */
+    void textAppended(int firstChanged) {
+        clearMatches();
+        staleSection = Math.min(staleSection, firstChanged);
+        indexText(APPEND_INDEX_DELAY);
+    }
+
+
+    /** Drop the index of the old text, and index the text on display once it has not
+     *  changed for a while, if find is on. Calls during that time put it off again,
+     *  so the text is indexed once for many changes in a row.
+     *  @param delay Milliseconds to wait for more changes. */
+    private void indexText(int delay) {
+        ++indexGeneration;
+        searchIndex = null;
+        search = null;
+        Handler main = XmlTextView.getMainHandler();
+        main.removeCallbacks(indexer);
+        if(enabled) main.postDelayed(indexer, delay);
+    }
+
+
+    /** Index the text on display on a background thread, then find the query again.
+     *  Only the sections that changed since the last index are copied here. */
+    private void buildIndex() {
+        final int generation = indexGeneration;
+        if(!enabled) return;
+        int sectionCount = view.getSectionCount();
+        if(sectionCount < staleSection) staleSection = sectionCount;
+        while(staleSection < indexSources.size())
+            indexSources.remove(indexSources.size() - 1);
+        for(int i=staleSection; i<sectionCount; i++) {
+            CharSequence txt = view.sectionText(i);
+            indexSources.add(txt == null ? "" : txt.toString());
+        }
+        staleSection = sectionCount;
+        final CharSequence[] sources = indexSources.toArray(new CharSequence[sectionCount]);
+        XmlTextView.getParser().execute(new Runnable() {
+            @Override
+            public void run() {
+                // Text changed while this was queued
+                if(generation != indexGeneration) return;
+                String[] texts = new String[sources.length];
+                for(int i=0; i<texts.length; i++)
+                    texts[i] = sources[i].toString();
+                final XmlSearchIndex index = XmlSearchIndex.build(texts);
+                XmlTextView.getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(generation != indexGeneration) return;
+                        searchIndex = index;
+                        search = index.new Search();
+                        if(query.length() != 0) runFind();
+                    }
+                });
+            }
+        });
+    }
+
+
+    /** Find the query in the index, and highlight the matches on screen.
+     *  @return The number of matches. */
+    private int runFind() {
+        int count = 0;
+        if(query.length() != 0) {
+            search.setQuery(query);
+            count = search.count();
+            if(count != 0) {
+                matches = search.positions();
+                highlightVisible();
+            }
+        }
+        if(listener != null) listener.onFindResult(query, count);
+        return count;
+    }
+
+
+    /** Get the position of a match in the index.
+     *  @throws IndexOutOfBoundsException if there is no such match. */
+    private int matchPosition(int match) {
+        if(match < 0 || getMatchCount() <= match)
+            throw new IndexOutOfBoundsException("Match " + match + " of " + getMatchCount());
+        return matches[match];
+    }
+
+
+    /** Highlight the matches in the sections on screen that are not highlighted yet. */
+    private void highlightVisible() {
+        if(matches == null || !view.getVisibleSections(visible)) return;
+        for(int i=visible[0]; i<=visible[1]; i++)
+            if(!highlighted.get(i)) highlight(i);
+    }
+
+
+    /** Highlight the matches in a section. */
+    private void highlight(int section) {
+        highlighted.set(section);
+        int start = searchIndex.sectionStart(section);
+        int end = searchIndex.sectionStart(section + 1);
+        // The first match in the section
+        int low = 0;
+        int high = matches.length;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(matches[mid] < start) low = mid + 1;
+            else high = mid;
+        }
+        if(low == matches.length || end <= matches[low]) return;
+
+        TextView textView = view.sectionTextView(section);
+        if(textView == null) return;
+        CharSequence txt = textView.getText();
+        if(!(txt instanceof Spannable)) {
+            textView.setText(txt, TextView.BufferType.SPANNABLE);
+            txt = textView.getText();
+        }
+        Spannable spannable = (Spannable) txt;
+        int offset = view.getSectionStart(section) - start;
+        int length = query.length();
+        for(int i=low; i<matches.length && matches[i] < end; i++)
+            spannable.setSpan(new FindSpan(color), matches[i] + offset,
+                              matches[i] + offset + length, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+
+    /** Remove the highlights from every section. */
+    private void clearHighlights() {
+        if(highlighted.isEmpty()) return;
+        // Sections in the single TextView share one view
+        TextView last = null;
+        for(int i=highlighted.nextSetBit(0); 0 <= i; i=highlighted.nextSetBit(i + 1)) {
+            TextView textView = view.sectionTextView(i);
+            if(textView == null) break;
+            if(textView != last) removeFindSpans(textView);
+            last = textView;
+        }
+        highlighted.clear();
+    }
+
+
+    /** Remove the highlights of {@link #find(String)} from a TextView. */
+    private static void removeFindSpans(TextView view) {
+        if(!(view.getText() instanceof Spannable)) return;
+        Spannable txt = (Spannable) view.getText();
+        for(FindSpan span : txt.getSpans(0, txt.length(), FindSpan.class))
+            txt.removeSpan(span);
+    }
+
+
+    /** Highlights a match of {@link #find(String)}. */
+    private static final class FindSpan extends BackgroundColorSpan {
+        FindSpan(int color) {
+            super(color);
+        }
+    }
+}
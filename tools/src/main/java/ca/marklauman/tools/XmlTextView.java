@@ -3,41 +3,172 @@ package ca.marklauman.tools;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.support.annotation.NonNull;
+import android.text.Layout;
+import android.text.Spannable;
 import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ClickableSpan;
+import android.text.style.LineBackgroundSpan;
+import android.text.style.LineHeightSpan;
 import android.util.AttributeSet;
 import android.view.Gravity;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Basic view that takes xml strings and parses them to display info.
  *  Must be extended to provide functionality.
  *  @author Mark Lauman */
 @SuppressWarnings("unused")
 public abstract class XmlTextView extends LinearLayout {
+    /** Shortest text that {@link #setParallelParse(boolean)} will split between threads.
+     *  Shorter texts are parsed faster than the threads can be woken. */
+    private static final int PARALLEL_MIN_CHARS = 16 * 1024;
+    /** Most section views (and most hr views) kept for reuse when they are not needed. */
+    private static final int MAX_SPARE_VIEWS = 8;
+    /** Number of characters {@link #appendHr(SpannableStringBuilder)} adds between sections. */
+    private static final int HR_LENGTH = 3;
+    /** Number of threads sections are parsed on in parallel. */
+    private static final int PARALLEL_THREADS
+            = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** Parses the text passed to {@link #setTextAsync(String)} for every view. */
+    private static ExecutorService parser;
+    /** Helps parse the sections of large texts when parsing in parallel. */
+    private static ExecutorService workers;
+    /** Handler of the main thread. */
+    private static Handler mainHandler;
+
     /** The AttributeSet passed to this view */
     private final AttributeSet attrSet;
+    /** The builder working on the current thread, if any. */
+    private final ThreadLocal<XmlSectionBuilder> parsing = new ThreadLocal<>();
+    /** Passes the tags without handlers to {@link #tagCompleted}. */
+    private final XmlSectionBuilder.Callback callback = new XmlSectionBuilder.Callback() {
+        @Override
+        public void tagCompleted(SpannableStringBuilder txt, String tag, int start, int end) {
+            XmlTextView.this.tagCompleted(txt, tag, start, end);
+        }
+    };
+
+    /** Handlers registered for each tag id. Null entries have no handler. */
+    private volatile TagHandler[] handlers = new TagHandler[0];
+    /** Incremented whenever the text changes, to cancel outdated parses. */
+    private volatile int parseGeneration = 0;
+    /** True to parse the sections of large texts on several threads. */
+    private volatile boolean parallelParse = false;
+    /** True to merge identical spans once a section is built. */
+    private volatile boolean coalesceSpans = false;
+    /** Number of spans merged away when the text on display was parsed. */
+    private int coalescedSpans = 0;
+    /** True to open the links in the text when they are tapped. */
+    private boolean linksClickable = false;
+    /** Index of the links in each section on display. Null until a section's links
+     *  are first needed. */
+    private final ArrayList<XmlSpanIndex<ClickableSpan>> linkIndexes = new ArrayList<>();
+    /** The link under the touch in progress, if any. */
+    private ClickableSpan pressedLink = null;
+    /** Opens the links tapped in the TextView of a section. */
+    private final OnTouchListener linkTouch = new OnTouchListener() {
+        @Override
+        public boolean onTouch(View v, MotionEvent event) {
+            int action = event.getAction() & MotionEvent.ACTION_MASK;
+            if(action == MotionEvent.ACTION_CANCEL) {
+                pressedLink = null;
+                return false;
+            }
+            if(action != MotionEvent.ACTION_DOWN && action != MotionEvent.ACTION_UP)
+                return pressedLink != null;
 
-    /** Tags currently active in the parser */
-    private final ArrayList<String> activeTags = new ArrayList<>(5);
-    /** Starting points of each active tag */
-    private final ArrayList<Integer> activeStart = new ArrayList<>(5);
+            ClickableSpan link = linkAt((TextView) v, event.getX(), event.getY());
+            if(action == MotionEvent.ACTION_DOWN) {
+                pressedLink = link;
+                return link != null;
+            }
+            boolean handled = pressedLink != null;
+            if(link != null && link == pressedLink) link.onClick(v);
+            pressedLink = null;
+            return handled;
+        }
+    };
+    /** Finds text for {@link #find(String)}. */
+    private final XmlTextFinder finder = new XmlTextFinder(this);
+    /** Told how long each text took to display. Null if nothing is timed. */
+    private ParseListener parseListener = null;
+    /** Visible part of this view, in its own coordinates. */
+    private final Rect visibleRect = new Rect();
 
-    /** Current value of the display string. */
+    /** Current value of the display string, unless {@link #appendedText} holds it. */
     private String rawText = "";
+    /** The display string while text is appended to it. Null if it is in {@link #rawText}. */
+    private StringBuilder appendedText = null;
+    /** End of the display string that has not been parsed yet, because it may be
+     *  continued by {@link #appendText(String)}. */
+    private String pending = "";
+    /** Builder of the last section, holding its open tags. Null if not appending. */
+    private XmlSectionBuilder appendBuilder = null;
+    /** The text of the last TextView, which appended text is added to. */
+    private SpannableStringBuilder appendTarget = null;
+    /** True if {@link #appendTarget} is the text inside the last TextView.
+     *  If it is a copy, the TextView is updated after each append. */
+    private boolean appendInPlace = false;
     /** True if we should split the text on "<hr/>" */
     private boolean hrSplit = true;
     /** Current TextView being used to display this part of the display string. */
     private TextView textView;
+    /** Line height of the TextViews made from {@link #textRes}, or -1 if not known. */
+    private int sectionLineHeight = -1;
+    /** The sections on display. Null if there are none, or if their views are outdated. */
+    private Sections shown = null;
+    /** The view of each section on display. */
+    private final ArrayList<View> sectionViews = new ArrayList<>();
+    /** The hr views between the sections on display. */
+    private final ArrayList<View> hrViews = new ArrayList<>();
+    /** Section views that are not on display, kept for reuse. */
+    private final ArrayList<View> spareSections = new ArrayList<>();
+    /** Hr views that are not on display, kept for reuse. */
+    private final ArrayList<View> spareHrs = new ArrayList<>();
+    /** True to display every section in one TextView. */
+    private boolean singleText = false;
+    /** True if the sections on display are in one TextView. */
+    private boolean shownSingle = false;
+    /** Number of sections on display. */
+    private int sectionCount = 0;
+    /** Offset of each section in the single TextView. Null if there is none. */
+    private int[] sectionStarts = null;
+    /** The hr view drawn between sections in the single TextView. Null until needed. */
+    private View hrSpanView = null;
+    /** Height of {@link #hrSpanView}, when it is not stretched to fit a line. */
+    private int hrSpanHeight = 0;
 
     /** Resource used for TextView elements */
     private int textRes = 0;
     /** Resource used for &lt;hr/&gt; elements */
     private int hrRes = R.layout.xmltextview_default_hr;
+    /** Resource displayed while text is parsed in the background. 0 for none. */
+    private int placeholderRes = 0;
 
     public XmlTextView(Context context) {
         super(context);
@@ -73,6 +204,7 @@ public abstract class XmlTextView extends LinearLayout {
                                                  defStyleAttr, defStyleRes);
         if(ta == null) return;
         try {
+            XmlPrecompiled.load(c);
             String txt = ta.getString(R.styleable.XmlTextView_text);
             if(txt != null) setText(txt);
         } finally {
@@ -83,6 +215,7 @@ public abstract class XmlTextView extends LinearLayout {
 
     /** Set the text on display */
     public void setText(int resourceId) {
+        XmlPrecompiled.load(getContext());
         setText(getContext().getString(resourceId));
     }
 
@@ -90,17 +223,334 @@ public abstract class XmlTextView extends LinearLayout {
     /** Set the text on display */
     public void setText(String text) {
         if(text == null) text = "";
-        if(rawText.equals(text)) return;
+        if(getRawText().equals(text)) return;
+        parseGeneration++;
         rebuildView(text);
     }
 
+
+    /** Add text to the end of the text on display. Only the new text is parsed: tags that
+     *  are open at the end of the text stay open, and new sections are added when an
+     *  &lt;hr/&gt; arrives. Use this for text that arrives a piece at a time.<br/>
+     *  <br/>
+     *  A tag cut off at the end of the text (and any &lt;hr/&gt; right at the end) is not
+     *  displayed until more text is appended. In the text being added to, positions passed to
+     *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)} are relative to the
+     *  start of the TextView's text (see {@link #getSectionStart(int)}). The first call
+     *  after the text is set parses all of the text again. */
+    public void appendText(String text) {
+        if(text == null || text.length() == 0) return;
+        parseGeneration++;
+        if(appendBuilder == null) {
+            startAppending(getRawText() + text);
+            return;
+        }
+        if(appendedText == null) appendedText = new StringBuilder(rawText);
+        appendedText.append(text);
+
+        String raw = pending + text;
+        int end = parsedLength(raw);
+        pending = raw.substring(end);
+        if(end == 0) return;
+        finder.textAppended(sectionCount - 1);
+        XmlDocument doc = XmlDocument.parse(raw.substring(0, end), hrSplit);
+        parsing.set(appendBuilder);
+        try {
+            appendBuilder.append(doc, 0, appendTarget);
+            if(!appendInPlace) showSection(appendTarget);
+            linkIndexes.set(sectionCount - 1, null);
+            for(int i=1; i<doc.sectionCount; i++) {
+                sectionStarted();
+                appendSection(appendBuilder.open(doc, i));
+            }
+        } finally {
+            parsing.remove();
+        }
+    }
+
+
+    /** Set the text on display, parsing it on a background thread.
+     *  Use this for large documents. */
+    public void setTextAsync(int resourceId) {
+        XmlPrecompiled.load(getContext());
+        setTextAsync(getContext().getString(resourceId));
+    }
+
+
+    /** Set the text on display, parsing it on a background thread.
+     *  Use this for large documents.<br/>
+     *  <br/>
+     *  {@link #sectionStarted()}, {@link #tagCompleted(SpannableStringBuilder, String, int, int)}
+     *  and the registered {@link TagHandler}s are called on the background thread, unless
+     *  {@link #isMainThreadOnly()} is overridden. The finished sections are displayed on
+     *  the main thread. If the text is changed again before then, the parse is cancelled.
+     *  Until the sections are ready, the old text (or the placeholder set with
+     *  {@link #setPlaceholderRes(int)}) is displayed. */
+    public void setTextAsync(String text) {
+        if(text == null) text = "";
+        if(getRawText().equals(text)) return;
+        stopAppending();
+        rawText = text;
+        final int generation = ++parseGeneration;
+
+        // Text in the cache is quick to display
+        Sections cached = cachedSections(text, hrSplit);
+        if(cached != null) {
+            showTimed(cached, text.length());
+            return;
+        }
+
+        if(placeholderRes != 0) {
+            removeAllViews();
+            textView = null;
+            addView(View.inflate(getContext(), placeholderRes, null));
+        }
+        final String raw = text;
+        final boolean split = hrSplit;
+        final int lineHeight = getSectionLineHeight();
+        final Sections old = shown;
+        final boolean timed = parseListener != null;
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                final Sections sections;
+                try {
+                    sections = parse(raw, split, lineHeight, generation, old, timed);
+                } catch(final RuntimeException e) {
+                    // Report the error on the main thread, like setText() would
+                    getMainHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            throw e;
+                        }
+                    });
+                    return;
+                }
+                if(sections == null) return;
+                getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(generation != parseGeneration) return;
+                        long start = timed ? System.nanoTime() : 0;
+                        showSections(sections);
+                        if(timed) report(sections, raw.length(), System.nanoTime() - start, true);
+                    }
+                });
+            }
+        };
+        if(isMainThreadOnly()) getMainHandler().post(job);
+        else getParser().execute(job);
+    }
+
+
+    /** Set a layout to display while {@link #setTextAsync(String)} parses the text.
+     *  @param placeholderLayout The resource id of the layout, or 0 to keep displaying
+     *                           the old text until the new text is ready. */
+    public void setPlaceholderRes(int placeholderLayout) {
+        placeholderRes = placeholderLayout;
+    }
+
+
     /** If set to true, the TextView will split and add a horizontal rule when it encounters
      *  the xml entity "&lt;hr/&gt;" or "&lt;hr /&gt;".<br/>
      *  Defaults to {@code true} */
     public void setHrSplit(boolean shouldSplit) {
         if(hrSplit == shouldSplit) return;
         hrSplit = shouldSplit;
-        rebuildView(rawText);
+        parseGeneration++;
+        rebuildView(getRawText());
+    }
+
+
+    /** If set to true, the sections of large texts will be parsed at the same time on
+     *  several threads, and displayed once they are all done. Only useful with
+     *  {@link #setHrSplit(boolean)}, as text without sections is parsed on one thread.<br/>
+     *  <br/>
+     *  Each section starts with a call to {@link #sectionStarted()}, followed by the
+     *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)} calls for its tags,
+     *  all on the same thread. Different sections are parsed on different threads, so
+     *  these methods must be thread safe, and cannot rely on the order of the sections.
+     *  Has no effect if {@link #isMainThreadOnly()} returns true, as every section is
+     *  then parsed on the main thread. Defaults to {@code false}. */
+    public void setParallelParse(boolean parallel) {
+        parallelParse = parallel;
+    }
+
+
+    /** If set to true, spans added by {@link #tagCompleted(SpannableStringBuilder, String,
+     *  int, int)} that touch or overlap an identical span are merged with it once each
+     *  section is built, and spans covered by an identical span are dropped. The text
+     *  looks the same, but has fewer spans to measure and draw. Spans are identical if
+     *  they are of the same platform style with the same value and flags
+     *  (like two bold {@link android.text.style.StyleSpan}s), or if they are equal by
+     *  {@link Object#equals(Object)}.<br/>
+     *  <br/>
+     *  Applies to text parsed after this call. Text added by {@link #appendText(String)}
+     *  is not coalesced. Defaults to {@code false}.
+     *  @see #getCoalescedSpanCount() */
+    public void setCoalesceSpans(boolean coalesce) {
+        coalesceSpans = coalesce;
+    }
+
+
+    /** If set to true, tapping a {@link ClickableSpan} in the text calls its
+     *  {@link ClickableSpan#onClick(View)}, like {@link android.text.method.LinkMovementMethod}.
+     *  The link under the finger is found in an index of each section's links, which is
+     *  built the first time the section is tapped. Taps on documents with thousands of
+     *  links do not search all of them. Defaults to {@code false}.<br/>
+     *  <br/>
+     *  The TextViews of the sections get an {@link OnTouchListener}, so do not set a
+     *  movement method or touch listener on them as well.
+     *  @see #getLinkAt(int, int)
+     *  @see #getLinks(int) */
+    public void setLinksClickable(boolean clickable) {
+        if(linksClickable == clickable) return;
+        linksClickable = clickable;
+        pressedLink = null;
+        OnTouchListener listener = clickable ? linkTouch : null;
+        for(View view : sectionViews)
+            findTextView(view).setOnTouchListener(listener);
+        for(View view : spareSections)
+            findTextView(view).setOnTouchListener(listener);
+    }
+
+
+    /** Find the link at an offset in a section.
+     *  @param section The index of the section.
+     *  @param offset The offset in the section's text. In the single TextView,
+     *                this is relative to {@link #getSectionStart(int)}.
+     *  @return The link, or null if there is none. If links overlap, the one
+     *  {@link android.text.Spanned#getSpans(int, int, Class)} lists first. */
+    public ClickableSpan getLinkAt(int section, int offset) {
+        XmlSpanIndex<ClickableSpan> index = linkIndex(section);
+        return index == null ? null : index.find(offset);
+    }
+
+
+    /** Get every link in a section, in the order they appear in the text.
+     *  Use this to list the links of the text for accessibility services.
+     *  @param section The index of the section.
+     *  @return The links. The array returned is a copy, and may be modified. */
+    public ClickableSpan[] getLinks(int section) {
+        XmlSpanIndex<ClickableSpan> index = linkIndex(section);
+        return index == null ? new ClickableSpan[0] : index.spans();
+    }
+
+
+    /** Number of spans removed by {@link #setCoalesceSpans(boolean)} when the text on
+     *  display was parsed. Sections taken from the parse cache or from the previous
+     *  text were coalesced when they were first built, and are not counted again. */
+    public int getCoalescedSpanCount() {
+        return coalescedSpans;
+    }
+
+
+    /** If set to true, the text on display is indexed for {@link #find(String)} each time
+     *  it changes. The index is built on a background thread, and takes about as much
+     *  memory as 4 copies of the text. While text is being added by
+     *  {@link #appendText(String)}, it is only indexed again once the appends pause.
+     *  {@link #find(String)} turns this on if it is off. Defaults to {@code false}. */
+    public void setFindEnabled(boolean enabled) {
+        finder.setEnabled(enabled);
+    }
+
+
+    /** Find every place some text appears in the text on display, ignoring case, and
+     *  highlight it. Only the sections on screen are highlighted; the others are
+     *  highlighted as they scroll into view. Finding text takes time in proportion to
+     *  the length of the query and the number of matches, not the length of the text.
+     *  When the query starts with the last one (as it does while it is typed), only the
+     *  characters added are searched for.<br/>
+     *  <br/>
+     *  The matches are found again whenever the text changes. The first time this is
+     *  called (and after the text changes) the index may not be ready yet: the matches
+     *  are then found once it is, and passed to the {@link FindListener}.
+     *  @param query The text to find. Null or "" to remove the highlights.
+     *  @return The number of matches, or -1 if the index is not ready. */
+    public int find(String query) {
+        return finder.find(query);
+    }
+
+
+    /** Number of matches found by the last {@link #find(String)}. 0 until they are found,
+     *  and after the text changes until they are found again. */
+    public int getMatchCount() {
+        return finder.getMatchCount();
+    }
+
+
+    /** Get the section holding a match of the last {@link #find(String)}.
+     *  @param match The index of the match. Matches are in the order they appear.
+     *  @return The index of the section.
+     *  @throws IndexOutOfBoundsException if match is not less than
+     *  {@link #getMatchCount()}. */
+    public int getMatchSection(int match) {
+        return finder.getMatchSection(match);
+    }
+
+
+    /** Get the offset of a match of the last {@link #find(String)} in its section.
+     *  @param match The index of the match. Matches are in the order they appear.
+     *  @return The offset of the match. In the single TextView, this is relative
+     *  to {@link #getSectionStart(int)}.
+     *  @throws IndexOutOfBoundsException if match is not less than
+     *  {@link #getMatchCount()}. */
+    public int getMatchOffset(int match) {
+        return finder.getMatchOffset(match);
+    }
+
+
+    /** Set the colour of the highlight behind the text found by {@link #find(String)}.
+     *  Defaults to translucent yellow. */
+    public void setFindHighlightColor(int color) {
+        finder.setHighlightColor(color);
+    }
+
+
+    /** Set a listener to be told when the matches of {@link #find(String)} are found.
+     *  @param listener The listener, or null for none. */
+    public void setFindListener(FindListener listener) {
+        finder.setListener(listener);
+    }
+
+
+    /** Set a listener to be told how long each text took to parse and display.
+     *  It is called on the main thread each time the text is set (by {@link #setText(String)}
+     *  or {@link #setTextAsync(String)}) and the new sections are on display.
+     *  Text is only timed while a listener is set, so leave this null unless the
+     *  numbers are needed.
+     *  @param listener The listener, or null for none. */
+    public void setParseListener(ParseListener listener) {
+        parseListener = listener;
+    }
+
+
+    /** Cache the sections built by every XmlTextView, so text that has been displayed
+     *  before can be displayed again without parsing it. Disabled by default.<br/>
+     *  <br/>
+     *  Text found in the cache skips {@link #sectionStarted()} and
+     *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)}, and reuses the
+     *  span objects created the first time. Only enable the cache if every subclass
+     *  in use produces the same spans for the same text, using spans that can be
+     *  shared between views.
+     *  @param maxChars The number of characters the cache may hold, or 0 to disable it.
+     *                  Clears the cache. */
+    public static void setParseCacheSize(int maxChars) {
+        XmlParseCache.setMaxSize(maxChars);
+    }
+
+
+    /** Number of times text was found in the parse cache.
+     *  @see #setParseCacheSize(int) */
+    public static int getParseCacheHitCount() {
+        return XmlParseCache.hitCount();
+    }
+
+
+    /** Number of times text was not found in the parse cache, and had to be parsed.
+     *  @see #setParseCacheSize(int) */
+    public static int getParseCacheMissCount() {
+        return XmlParseCache.missCount();
     }
 
 
@@ -109,137 +559,625 @@ public abstract class XmlTextView extends LinearLayout {
      *                    This layout can have a TextView as its root element, or contain
      *                    a TextView with an id of {@link android.R.id#text1}. */
     public void setTextViewRes(int textLayout) {
+        finder.clearMatches();
         textRes = textLayout;
+        sectionLineHeight = -1;
+        stopAppending();
+        // Views of the old layout cannot be reused
+        shown = null;
+        sectionViews.clear();
+        spareSections.clear();
     }
 
 
     /** Change the default resource used to draw the hr lines. Allows for custom hr lines */
     public void setHrRes(int hrLayout) {
         hrRes = hrLayout;
+        stopAppending();
+        hrViews.clear();
+        spareHrs.clear();
+        hrSpanView = null;
+    }
+
+
+    /** If set to true, every section is displayed in one TextView. The hr lines between
+     *  sections are drawn inside the text, using the layout from {@link #setHrRes(int)}.
+     *  This saves two views per section, but the text cannot be reused when one section
+     *  changes. Use {@link #getSectionStart(int)} to find the sections in the text.<br/>
+     *  Defaults to {@code false} */
+    public void setSingleTextView(boolean single) {
+        if(singleText == single) return;
+        singleText = single;
+        if(appendBuilder != null) {
+            parseGeneration++;
+            rebuildView(getRawText());
+        } else if(shown != null) showSections(shown);
+    }
+
+
+    /** Number of sections on display. */
+    public int getSectionCount() {
+        return sectionCount;
+    }
+
+
+    /** Get the offset of a section in the text of its TextView. Positions passed to
+     *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)} are relative to
+     *  the start of their section.
+     *  @param section The index of the section.
+     *  @return The offset of the section. Always 0 unless
+     *  {@link #setSingleTextView(boolean)} is on. */
+    public int getSectionStart(int section) {
+        return sectionStarts == null ? 0 : sectionStarts[section];
+    }
+
+
+    /** Get the section containing an offset in the text of the single TextView.
+     *  @param offset The offset in the text.
+     *  @return The index of the section. Always 0 unless
+     *  {@link #setSingleTextView(boolean)} is on. */
+    public int getSectionAt(int offset) {
+        if(sectionStarts == null) return 0;
+        // The last section starting at or before the offset
+        int low = 1;
+        int high = sectionCount;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(sectionStarts[mid] <= offset) low = mid + 1;
+            else high = mid;
+        }
+        return low - 1;
     }
 
 
     /** Rebuild the TextView using the provided text as the basis */
     private void rebuildView(@NonNull String text) {
+        stopAppending();
         rawText = text;
-        removeAllViews();
-        Context c = getContext();
+        Sections sections = cachedSections(text, hrSplit);
+        if(sections == null)
+            sections = parse(text, hrSplit, getSectionLineHeight(), parseGeneration, shown,
+                             parseListener != null);
+        showTimed(sections, text.length());
+    }
 
-        // If we aren't splitting on the <hr/> tag, this is just one textView
-        if(!hrSplit)
-            addView(newSection(text));
-        else {
-            // We are splitting on the <hr/> tag
-            String[] split = text.split("<hr\\s*/>");
-            addView(newSection(split[0]));
-            for(int i=1; i<split.length; i++) {
-                addView(View.inflate(c, hrRes, null));
-                addView(newSection(split[i]));
+
+    /** Display these sections, timing them if there is a {@link ParseListener}.
+     *  @param length The length of the raw text of the sections. */
+    private void showTimed(Sections sections, int length) {
+        if(parseListener == null) {
+            showSections(sections);
+            return;
+        }
+        long start = System.nanoTime();
+        showSections(sections);
+        report(sections, length, System.nanoTime() - start, false);
+    }
+
+
+    /** Tell the {@link ParseListener} how long some sections took to display.
+     *  @param sections The sections on display.
+     *  @param length The length of the raw text of the sections.
+     *  @param viewNanos Time spent putting the sections in their views.
+     *  @param async True if the sections were parsed by {@link #setTextAsync(String)}. */
+    private void report(Sections sections, int length, long viewNanos, boolean async) {
+        ParseListener listener = parseListener;
+        if(listener == null) return;
+        ParseStats stats = sections.stats != null ? sections.stats : new ParseStats();
+        stats.async = async;
+        stats.characters = length;
+        stats.sectionCount = sections.texts.length;
+        stats.viewNanos = viewNanos;
+        for(CharSequence txt : sections.texts)
+            if(txt instanceof Spanned)
+                stats.spanCount += ((Spanned) txt).getSpans(0, txt.length(), Object.class).length;
+        listener.onParsed(stats);
+    }
+
+
+    /** Get the current value of the display string. */
+    private String getRawText() {
+        if(appendedText != null) {
+            rawText = appendedText.toString();
+            appendedText = null;
+        }
+        return rawText;
+    }
+
+
+    /** Display text so that more can be appended to it. Parses all of it except the last
+     *  section's tags, which are left open for {@link #appendText(String)}. */
+    private void startAppending(String text) {
+        stopAppending();
+        rawText = text;
+        int end = parsedLength(text);
+        pending = text.substring(end);
+        XmlDocument doc = XmlDocument.parse(text.substring(0, end), hrSplit);
+        XmlSectionBuilder builder = new XmlSectionBuilder(callback, handlers,
+                                                          getSectionLineHeight());
+        CharSequence[] sections = new CharSequence[doc.sectionCount];
+        int last = doc.sectionCount - 1;
+        parsing.set(builder);
+        try {
+            for(int i=0; i<=last; i++) {
+                sectionStarted();
+                sections[i] = i == last ? builder.open(doc, i) : builder.build(doc, i);
             }
+        } finally {
+            parsing.remove();
         }
-        invalidate();
+        showSections(new Sections(null, sections, 0));
+        // The sections change as text is appended, so they cannot be reused
+        shown = null;
+
+        appendTarget = showAppendable(textView.getText());
+        builder.moveActiveTags(getSectionStart(last));
+        appendBuilder = builder;
     }
 
 
-    /** Called when a new TextView is created due to section breaks,
-     *  Makes a new text section for the view. */
-    private View newSection(String rawText) {
-        sectionStarted();
-        Context c = getContext();
+    /** Stop continuing the text on display with {@link #appendText(String)}.
+     *  The text that was held back is dropped, as the display string is being replaced. */
+    private void stopAppending() {
+        appendBuilder = null;
+        appendTarget = null;
+        pending = "";
+    }
 
-        // Create the TextView from the provided resource
-        View view;
-        if(textRes != 0) {
-            view = View.inflate(c, textRes, null);
-            if(view instanceof TextView)
-                textView = (TextView)view;
-            else textView = (TextView)view.findViewById(android.R.id.text1);
+
+    /** Add a section to the end of the text on display, and make it the one appended to.
+     *  @param txt The text of the section. */
+    private void appendSection(SpannableStringBuilder txt) {
+        int offset = 0;
+        if(singleText) {
+            if(sectionStarts.length == sectionCount)
+                sectionStarts = Utils.copyOf(sectionStarts, sectionCount * 2);
+            appendHr(appendTarget);
+            offset = appendTarget.length();
+            sectionStarts[sectionCount] = offset;
+            appendTarget.append(txt);
+            if(!appendInPlace) showSection(appendTarget);
         } else {
-            textView = new TextView(c, attrSet);
-            textView.setGravity(Gravity.CENTER);
-            view = textView;
+            View hr = spareHrs.isEmpty() ? View.inflate(getContext(), hrRes, null)
+                                         : spareHrs.remove(spareHrs.size() - 1);
+            View view = spareSections.isEmpty() ? createSection()
+                                                : spareSections.remove(spareSections.size() - 1);
+            hrViews.add(hr);
+            sectionViews.add(view);
+            addView(hr);
+            addView(view);
+            textView = findTextView(view);
+            appendTarget = showAppendable(txt);
         }
+        appendBuilder.moveActiveTags(offset);
+        linkIndexes.add(null);
+        sectionCount++;
+    }
+
+
+    /** Display text in the current TextView so that more can be appended to it.
+     *  @return The text to append to. */
+    private SpannableStringBuilder showAppendable(CharSequence txt) {
+        textView.setText(txt, TextView.BufferType.EDITABLE);
+        CharSequence shownText = textView.getText();
+        appendInPlace = shownText instanceof SpannableStringBuilder;
+        return appendInPlace ? (SpannableStringBuilder) shownText
+                             : new SpannableStringBuilder(txt);
+    }
+
 
-        // Handle raw text that has no tags
-        int start = rawText.indexOf("<");
-        if(start < 0) {
-            textView.setText(rawText);
-            return view;
+    /** Find how much of some text can be parsed before more is appended. A tag that is
+     *  cut off at the end is held back, as are any &lt;hr/&gt; at the very end (a section
+     *  is only added once it has some text).
+     *  @return The length of the text that can be parsed. */
+    private int parsedLength(String raw) {
+        int end = raw.length();
+        int open = raw.lastIndexOf('<');
+        if(raw.lastIndexOf('>') < open) end = open;
+        while(hrSplit && 0 < end && raw.charAt(end - 1) == '>') {
+            open = raw.lastIndexOf('<', end - 1);
+            if(open < 0 || !XmlDocument.isHr(raw, open, end - 1)) break;
+            end = open;
         }
+        return end;
+    }
 
-        // Handle text that has tags
-        SpannableStringBuilder txt = new SpannableStringBuilder(rawText);
-        int offset = 0;
-        do {
-            // determine the size and type of the tag
-            boolean close = rawText.charAt(start+1) == '/';
-            int end = rawText.indexOf(">", start+1);
-            if(end < 0) end = rawText.length()-1;
-            boolean selfClose = !close && rawText.charAt(end-1) == '/';
-
-            // Determine the name of the tag
-            String tag = rawText.substring(start+1, end);
-            if(close) tag = tag.substring(1);
-            else if(selfClose) tag = tag.substring(0, tag.length()-1);
-            tag = tag.trim().toLowerCase();
-
-            // If it is self closing remove and handle it
-            if(selfClose) {
-                int oldSize = txt.length();
-                txt.delete(start - offset, end + 1 - offset);
-                tagCompleted(txt, tag, start - offset, start - offset);
-                offset += oldSize-txt.length();
+
+    /** Get the sections of some text from the parse cache.
+     *  @return The sections, or null if they are not in the cache. */
+    private Sections cachedSections(String text, boolean split) {
+        XmlParseCache.Entry cached = XmlParseCache.get(getClass(), text, split,
+                                                       getSectionLineHeight(), handlers,
+                                                       coalesceSpans);
+        if(cached == null) return null;
+        CharSequence[] sections = new CharSequence[cached.size()];
+        for(int i=0; i<sections.length; i++)
+            sections[i] = cached.section(i);
+        return new Sections(null, sections, 0);
+    }
+
+
+    /** Parse text into its sections. May be called from any thread.
+     *  @param text The raw text.
+     *  @param split True to split the text on &lt;hr/&gt;.
+     *  @param lineHeight The value of {@link #getLineHeight()} during the parse.
+     *  @param generation The {@link #parseGeneration} this parse is for.
+     *  @param old The sections on display. Sections with the same xml are not parsed again.
+     *  @param timed True to time the parse, for the {@link ParseListener}.
+     *  @return The sections, or null if the parse was cancelled. */
+    private Sections parse(String text, boolean split, int lineHeight, int generation,
+                           Sections old, boolean timed) {
+        long start = timed ? System.nanoTime() : 0;
+        XmlDocument doc = XmlDocument.parse(text, split);
+        long tokenized = timed ? System.nanoTime() : 0;
+        ParseJob job = new ParseJob(text, doc, lineHeight, generation, old, timed);
+        if(parallelParse && !isMainThreadOnly() && 1 < doc.sectionCount
+                && 1 < PARALLEL_THREADS && PARALLEL_MIN_CHARS <= text.length())
+            job.runParallel();
+        else job.run();
+        if(job.error != null) throw job.error;
+        if(job.cancelled) return null;
+        Sections res = new Sections(job.raws, job.sections, job.coalesced.get());
+        res.handlers = job.handlers;
+        res.coalesce = job.coalesce;
+        res.lineHeight = lineHeight;
+        if(timed) {
+            res.stats = new ParseStats();
+            res.stats.tokenizeNanos = tokenized - start;
+            res.stats.buildNanos = System.nanoTime() - tokenized;
+            res.stats.tagNanos = job.tagNanos.get();
+            res.stats.sectionsBuilt = job.built.get();
+        }
+        XmlParseCache.put(getClass(), text, split, lineHeight, job.handlers, job.coalesce,
+                          job.sections);
+        return res;
+    }
+
+
+    /** Display these sections. */
+    private void showSections(Sections next) {
+        finder.clearMatches();
+        sectionCount = next.texts.length;
+        coalescedSpans = next.coalesced;
+        linkIndexes.clear();
+        linkIndexes.addAll(Collections.<XmlSpanIndex<ClickableSpan>>nCopies(sectionCount, null));
+        if(singleText) {
+            showViews(new CharSequence[] {joinSections(next.texts)}, null);
+        } else {
+            sectionStarts = null;
+            showViews(next.texts, shown != null && !shownSingle ? shown.texts : null);
+        }
+        shown = next;
+        shownSingle = singleText;
+        invalidate();
+        finder.textShown(next.texts);
+    }
+
+
+    /** Join sections into one text, with an hr line drawn between each pair.
+     *  Records where each section starts in {@link #sectionStarts}. */
+    private CharSequence joinSections(CharSequence[] texts) {
+        sectionStarts = new int[texts.length];
+        if(texts.length == 1) return texts[0];
+        SpannableStringBuilder res = new SpannableStringBuilder();
+        for(int i=0; i<texts.length; i++) {
+            if(i != 0) appendHr(res);
+            sectionStarts[i] = res.length();
+            res.append(texts[i]);
+        }
+        return res;
+    }
+
+
+    /** Add an hr line to the end of the single TextView's text. */
+    private void appendHr(SpannableStringBuilder txt) {
+        if(hrSpanView == null) {
+            hrSpanView = View.inflate(getContext(), hrRes, null);
+            hrSpanView.measure(MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED),
+                               MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+            hrSpanHeight = hrSpanView.getMeasuredHeight();
+        }
+        // Each hr gets a line of its own
+        txt.append('\n');
+        int start = txt.length();
+        txt.append(" \n");
+        txt.setSpan(new HrSpan(hrSpanView, hrSpanHeight), start, txt.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+
+    /** Display these texts, one per view. Texts that are already on display keep their
+     *  views. The other texts reuse the views of the texts they replace, and only the
+     *  children after the first changed view are added again.
+     *  @param texts The text of each view.
+     *  @param oldTexts The text of each view on display, or null if it is not known. */
+    private void showViews(CharSequence[] texts, CharSequence[] oldTexts) {
+        int oldCount = sectionViews.size();
+        View[] views = new View[texts.length];
+        boolean[] taken = new boolean[oldCount];
+
+        // Sections that did not change keep their views
+        if(oldTexts != null) {
+            IdentityHashMap<CharSequence, Integer> old = new IdentityHashMap<>(oldCount);
+            for(int i=0; i<oldCount; i++)
+                old.put(oldTexts[i], i);
+            for(int i=0; i<texts.length; i++) {
+                Integer index = old.remove(texts[i]);
+                if(index == null) continue;
+                views[i] = sectionViews.get(index);
+                taken[index] = true;
+            }
+        }
+
+        // Changed sections take the view in the same position, or any view that is free
+        int free = 0;
+        for(int i=0; i<texts.length; i++) {
+            if(views[i] != null) continue;
+            if(i < oldCount && !taken[i]) {
+                views[i] = sectionViews.get(i);
+                taken[i] = true;
             } else {
-                // If this is an opening tag, remember it
-                if(!close) {
-                    activeTags.add(tag);
-                    activeStart.add(start-offset);
-                }
-                else {
-                    // If this was a closing tag, search for the first one that matches.
-                    for(int i=activeTags.size()-1; 0<=i; i--) {
-                        if(activeTags.get(i).equals(tag)) {
-                            // We have a match. Close all tags inside this tag.
-                            for(int i2=activeTags.size()-1; i<=i2; i2--) {
-                                int oldSize = txt.length();
-                                tagCompleted(txt, activeTags.get(i2),
-                                        activeStart.get(i2), start-offset);
-                                offset += oldSize-txt.length();
-                                activeTags.remove(i2);
-                                activeStart.remove(i2);
-                            }
-                            break;
-                        }
-                    }
-                }
-                // remove this tag
-                int oldSize = txt.length();
-                txt.delete(start-offset, end-offset +1);
-                offset += oldSize-txt.length();
+                while(free < oldCount && taken[free]) free++;
+                if(free < oldCount) {
+                    views[i] = sectionViews.get(free);
+                    taken[free] = true;
+                } else if(spareSections.isEmpty()) views[i] = createSection();
+                else views[i] = spareSections.remove(spareSections.size() - 1);
             }
+            textView = findTextView(views[i]);
+            showSection(texts[i]);
+        }
+        for(int i=0; i<oldCount; i++)
+            if(!taken[i]) recycle(spareSections, sectionViews.get(i));
+        sectionViews.clear();
+        sectionViews.addAll(Arrays.asList(views));
+        textView = findTextView(views[views.length - 1]);
+
+        int hrCount = texts.length - 1;
+        while(hrCount < hrViews.size())
+            recycle(spareHrs, hrViews.remove(hrViews.size() - 1));
+        while(hrViews.size() < hrCount) {
+            if(spareHrs.isEmpty()) hrViews.add(View.inflate(getContext(), hrRes, null));
+            else hrViews.add(spareHrs.remove(spareHrs.size() - 1));
+        }
+
+        // Children are sections, with an hr between each pair
+        int childCount = getChildCount();
+        int wanted = texts.length + hrCount;
+        int first = 0;
+        while(first < childCount && first < wanted && getChildAt(first) == child(first))
+            first++;
+        if(first < childCount) removeViews(first, childCount - first);
+        for(int i=first; i<wanted; i++)
+            addView(child(i));
+    }
 
-            // Iterate
-            start = rawText.indexOf("<", start+1);
-        } while(0 <= start);
 
-        textView.setText(txt, TextView.BufferType.SPANNABLE);
+    /** Get the view that should be the child at some index, once the sections are shown. */
+    private View child(int index) {
+        if(index % 2 == 0) return sectionViews.get(index / 2);
+        return hrViews.get(index / 2);
+    }
+
+
+    /** Keep a view for reuse, if there is room for it. */
+    private static void recycle(ArrayList<View> spares, View view) {
+        if(spares.size() < MAX_SPARE_VIEWS) spares.add(view);
+    }
+
+
+    /** Create the view of a section from the provided resource. */
+    private View createSection() {
+        Context c = getContext();
+        View view;
+        if(textRes != 0) view = View.inflate(c, textRes, null);
+        else {
+            view = new TextView(c, attrSet);
+            ((TextView) view).setGravity(Gravity.CENTER);
+        }
+        if(linksClickable) findTextView(view).setOnTouchListener(linkTouch);
         return view;
     }
 
+
+    /** Get the index of the links in a section, building it if needed.
+     *  @return The index, or null if there is no such section on display. */
+    private XmlSpanIndex<ClickableSpan> linkIndex(int section) {
+        if(section < 0 || linkIndexes.size() <= section || textView == null) return null;
+        XmlSpanIndex<ClickableSpan> index = linkIndexes.get(section);
+        if(index != null) return index;
+
+        CharSequence txt;
+        int start = 0;
+        int end;
+        if(sectionStarts != null) {
+            txt = textView.getText();
+            start = sectionStarts[section];
+            end = section + 1 < sectionCount ? sectionStarts[section + 1] : txt.length();
+        } else {
+            txt = findTextView(sectionViews.get(section)).getText();
+            end = txt.length();
+        }
+        index = XmlSpanIndex.build(txt, start, end, ClickableSpan.class);
+        linkIndexes.set(section, index);
+        return index;
+    }
+
+
+    /** Find the link at a point in the TextView of a section.
+     *  @return The link, or null if there is none. */
+    private ClickableSpan linkAt(TextView view, float x, float y) {
+        Layout layout = view.getLayout();
+        if(layout == null) return null;
+        int left = (int) x - view.getTotalPaddingLeft() + view.getScrollX();
+        int top = (int) y - view.getTotalPaddingTop() + view.getScrollY();
+        int line = layout.getLineForVertical(top);
+        // Taps beside the end of a line are not on the text
+        if(left < layout.getLineLeft(line) || layout.getLineRight(line) < left) return null;
+        int offset = layout.getOffsetForHorizontal(line, left);
+
+        if(sectionStarts != null) {
+            int section = getSectionAt(offset);
+            return getLinkAt(section, offset - sectionStarts[section]);
+        }
+        for(int i=0; i<sectionViews.size(); i++)
+            if(findTextView(sectionViews.get(i)) == view) return getLinkAt(i, offset);
+        return null;
+    }
+
+
+    /** Find the sections on screen.
+     *  @param range Set to the index of the first and last section on screen.
+     *  @return False if there are none. */
+    boolean getVisibleSections(int[] range) {
+        if(textView == null || !getLocalVisibleRect(visibleRect)) return false;
+        if(sectionStarts != null) {
+            Layout layout = textView.getLayout();
+            if(layout == null) return false;
+            int top = textView.getTop() + textView.getTotalPaddingTop() - textView.getScrollY();
+            range[0] = getSectionAt(layout.getLineStart(
+                    layout.getLineForVertical(visibleRect.top - top)));
+            range[1] = getSectionAt(layout.getLineEnd(
+                    layout.getLineForVertical(visibleRect.bottom - top)));
+            return true;
+        }
+        // The section views are in order from top to bottom
+        int low = 0;
+        int high = sectionViews.size();
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(sectionViews.get(mid).getBottom() <= visibleRect.top) low = mid + 1;
+            else high = mid;
+        }
+        int last = low - 1;
+        while(last + 1 < sectionViews.size()
+                && sectionViews.get(last + 1).getTop() < visibleRect.bottom)
+            last++;
+        range[0] = low;
+        range[1] = last;
+        return true;
+    }
+
+
+    /** Get the TextView displaying a section.
+     *  @return The TextView, or null if the section has no view. */
+    TextView sectionTextView(int section) {
+        if(sectionStarts != null) section = 0;
+        return section < sectionViews.size() ? findTextView(sectionViews.get(section)) : null;
+    }
+
+
+    /** Get the text of a section on display, without the hr line after it.
+     *  @return The text, or null if the section has no view. */
+    CharSequence sectionText(int section) {
+        TextView view = sectionTextView(section);
+        if(view == null) return null;
+        CharSequence txt = view.getText();
+        if(sectionStarts == null) return txt;
+        int end = section + 1 < sectionCount ? sectionStarts[section + 1] - HR_LENGTH
+                                             : txt.length();
+        return txt.subSequence(sectionStarts[section], end);
+    }
+
+
+    /** Find the TextView in the view of a section. */
+    static TextView findTextView(View section) {
+        if(section instanceof TextView) return (TextView) section;
+        return (TextView) section.findViewById(android.R.id.text1);
+    }
+
+
+    /** Display the text of a section in the current TextView. */
+    private void showSection(CharSequence txt) {
+        if(txt instanceof String) textView.setText(txt);
+        else textView.setText(txt, TextView.BufferType.SPANNABLE);
+    }
+
+
+    /** Get the line height of the text sections, without needing a section on display. */
+    private int getSectionLineHeight() {
+        if(sectionLineHeight < 0)
+            sectionLineHeight = lineHeight(textView != null ? textView
+                                                            : findTextView(createSection()));
+        return sectionLineHeight;
+    }
+
+
     /** Get the line height of the active text section */
     public int getLineHeight() {
-        return textView == null ? 0 : (int)(-textView.getPaint().ascent() + 0.5f);
+        XmlSectionBuilder builder = parsing.get();
+        if(builder != null) return builder.lineHeight;
+        return textView == null ? 0 : lineHeight(textView);
+    }
+
+
+    /** Get the line height of a TextView. */
+    static int lineHeight(TextView view) {
+        return (int)(-view.getPaint().ascent() + 0.5f);
     }
 
 
     /** Checks to see if a given tag is active. Useful in
      *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)}. */
     protected boolean tagActive(String tagName) {
-        return activeTags.contains(tagName);
+        XmlSectionBuilder builder = parsing.get();
+        return builder != null && builder.isActive(tagName);
     }
 
 
-    /** Called when a new TextView is created for another section (separated by &lt;hr/&gt; tags) */
+    /** Checks to see if a given tag is active. Faster than {@link #tagActive(String)}.
+     *  @param tagId The id of the tag, from {@link #getTagId(String)}. */
+    protected boolean tagActive(int tagId) {
+        XmlSectionBuilder builder = parsing.get();
+        return builder != null && builder.isActive(tagId);
+    }
+
+
+    /** Get the id of a tag. Ids are the same in every XmlTextView, so they can be
+     *  kept in static fields.
+     *  @param tagName The name of the tag (everything between the '&lt;' and '&gt;').
+     *                 Case is ignored.
+     *  @return The tag's id.
+     *  @throws IllegalStateException if too many different tags have been used. */
+    protected static int getTagId(String tagName) {
+        String name = tagName.trim();
+        int id = XmlTagRegistry.intern(name, 0, name.length());
+        if(id == XmlTagRegistry.NO_ID)
+            throw new IllegalStateException("Too many tags to register \"" + tagName + "\"");
+        return id;
+    }
+
+
+    /** Send every completion of a tag to a handler, instead of to
+     *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)}.
+     *  Call this before setting the text.
+     *  @param tagName The name of the tag. Case is ignored.
+     *  @param handler The handler for the tag, or null to remove its handler.
+     *  @return The tag's id. */
+    protected int registerTag(String tagName, TagHandler handler) {
+        int id = getTagId(tagName);
+        // Parses in progress keep the array they started with
+        TagHandler[] newHandlers = Utils.copyOf(handlers,
+                                                Math.max(handlers.length, XmlTagRegistry.size()));
+        newHandlers[id] = handler;
+        handlers = newHandlers;
+        return id;
+    }
+
+
+    /** Override this to return true if {@link #sectionStarted()},
+     *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)} or the registered
+     *  {@link TagHandler}s must be called on the main thread.
+     *  {@link #setTextAsync(String)} will then parse the text on the main thread,
+     *  after the current frame, and {@link #setParallelParse(boolean)} is ignored.
+     *  @return False by default. */
+    protected boolean isMainThreadOnly() {
+        return false;
+    }
+
+
+    /** Called when a new TextView is created for another section (separated by &lt;hr/&gt; tags).
+     *  Sections with the same xml as a section already on display are not parsed again. */
     protected abstract void sectionStarted();
 
     /** Called when an xml tag closes.
@@ -251,4 +1189,373 @@ public abstract class XmlTextView extends LinearLayout {
      * @param end The end position of the tag. If this is the same as start, it is because the
      *            tag is self-closing. */
     protected abstract void tagCompleted(SpannableStringBuilder txt, String tag, int start, int end);
-}
\ No newline at end of file
+
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        finder.attach(getViewTreeObserver());
+    }
+
+
+    @Override
+    protected void onDetachedFromWindow() {
+        finder.detach(getViewTreeObserver());
+        super.onDetachedFromWindow();
+    }
+
+
+    /** Get the executor that parses text in the background, creating it if needed. */
+    static synchronized ExecutorService getParser() {
+        if(parser == null) parser = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "XmlTextView");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        return parser;
+    }
+
+
+    /** Get the executor that helps parse sections in parallel, creating it if needed. */
+    private static synchronized ExecutorService getWorkers() {
+        if(workers == null) workers = Executors.newFixedThreadPool(PARALLEL_THREADS,
+                                                                   new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "XmlTextView worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        return workers;
+    }
+
+
+    /** Get a handler for the main thread, creating it if needed. */
+    static synchronized Handler getMainHandler() {
+        if(mainHandler == null) mainHandler = new Handler(Looper.getMainLooper());
+        return mainHandler;
+    }
+
+
+    /** Handles one type of tag, in place of
+     *  {@link #tagCompleted(SpannableStringBuilder, String, int, int)}.
+     *  @see #registerTag(String, TagHandler) */
+    public interface TagHandler {
+        /** Called when the tag closes.
+         *  @param txt The spannable string that will be displayed in the TextView.
+         *  @param start The start position of the tag.
+         *  @param end The end position of the tag. Same as start if the tag is self-closing. */
+        void tagCompleted(SpannableStringBuilder txt, int start, int end);
+    }
+
+
+    /** Told when the matches of {@link #find(String)} are found.
+     *  @see #setFindListener(FindListener) */
+    public interface FindListener {
+        /** Called on the main thread once the matches of a query are found.
+         *  Use {@link #getMatchSection(int)} and {@link #getMatchOffset(int)} to find them.
+         *  @param query The query, as passed to {@link #find(String)}.
+         *  @param matchCount The number of matches. */
+        void onFindResult(String query, int matchCount);
+    }
+
+
+    /** Told how long each text took to parse and display.
+     *  @see #setParseListener(ParseListener) */
+    public interface ParseListener {
+        /** Called on the main thread once a text is on display.
+         *  @param stats How long the text took. */
+        void onParsed(ParseStats stats);
+    }
+
+
+    /** How long one text took to parse and display, as passed to the
+     *  {@link ParseListener}. Text taken from the parse cache (see
+     *  {@link #setParseCacheSize(int)}) is not parsed, so only its view time is known. */
+    public static final class ParseStats {
+        /** True if the text was parsed by {@link #setTextAsync(String)}. */
+        boolean async = false;
+        /** Length of the raw text. */
+        int characters = 0;
+        /** Number of sections in the text. */
+        int sectionCount = 0;
+        /** Number of sections parsed. The others were reused. */
+        int sectionsBuilt = 0;
+        /** Number of spans in the sections. */
+        int spanCount = 0;
+        /** Time spent finding the tags in the raw text. */
+        long tokenizeNanos = 0;
+        /** Time spent building the text of the sections, including the tag handlers. */
+        long buildNanos = 0;
+        /** Time spent in the tag handlers, summed over every thread. */
+        long tagNanos = 0;
+        /** Time spent putting the sections in their views. */
+        long viewNanos = 0;
+
+        ParseStats() {}
+
+        /** True if the text was parsed on a background thread by
+         *  {@link #setTextAsync(String)}. The parse times are then from that thread. */
+        public boolean isAsync() {
+            return async;
+        }
+
+        /** Number of characters of raw xml processed. */
+        public int getCharacters() {
+            return characters;
+        }
+
+        /** Number of sections in the text. */
+        public int getSectionCount() {
+            return sectionCount;
+        }
+
+        /** Number of sections that were parsed. Sections that were already on display
+         *  and cached texts are reused instead. */
+        public int getSectionsBuilt() {
+            return sectionsBuilt;
+        }
+
+        /** Number of spans in the text of the sections. */
+        public int getSpanCount() {
+            return spanCount;
+        }
+
+        /** Time spent finding the tags in the raw text, in nanoseconds. */
+        public long getTokenizeNanos() {
+            return tokenizeNanos;
+        }
+
+        /** Time spent building the text of the sections, in nanoseconds.
+         *  Includes {@link #getTagNanos()}, and the time spent coalescing spans. */
+        public long getBuildNanos() {
+            return buildNanos;
+        }
+
+        /** Time spent in {@link #tagCompleted(SpannableStringBuilder, String, int, int)}
+         *  and the registered {@link TagHandler}s, in nanoseconds. When sections are
+         *  parsed in parallel, this is the sum of the time on every thread. */
+        public long getTagNanos() {
+            return tagNanos;
+        }
+
+        /** Time spent inflating the views of the sections and setting their text,
+         *  in nanoseconds. */
+        public long getViewNanos() {
+            return viewNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "ParseStats{characters=" + characters + ", sections=" + sectionCount
+                    + ", built=" + sectionsBuilt + ", spans=" + spanCount
+                    + ", tokenize=" + tokenizeNanos + "ns, build=" + buildNanos
+                    + "ns, tags=" + tagNanos + "ns, views=" + viewNanos
+                    + "ns" + (async ? ", async}" : "}");
+        }
+    }
+
+
+    /** Draws an hr view on the line it spans, sizing the line to fit the view. */
+    private static final class HrSpan implements LineHeightSpan, LineBackgroundSpan {
+        /** The hr view. Shared by every HrSpan of a text. */
+        private final View hr;
+        /** Height of the line holding the hr. */
+        private final int height;
+
+        HrSpan(View hr, int height) {
+            this.hr = hr;
+            this.height = height;
+        }
+
+        @Override
+        public void chooseHeight(CharSequence text, int start, int end, int spanstartv, int v,
+                                 Paint.FontMetricsInt fm) {
+            fm.top = fm.ascent = -height;
+            fm.bottom = fm.descent = 0;
+        }
+
+        @Override
+        public void drawBackground(Canvas c, Paint p, int left, int right, int top,
+                                   int baseline, int bottom, CharSequence text, int start,
+                                   int end, int lnum) {
+            int width = right - left;
+            int height = bottom - top;
+            if(hr.getWidth() != width || hr.getHeight() != height) {
+                hr.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                           MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+                hr.layout(0, 0, width, height);
+            }
+            int save = c.save();
+            c.translate(left, top);
+            hr.draw(c);
+            c.restoreToCount(save);
+        }
+    }
+
+
+    /** The sections of a text. */
+    private static final class Sections {
+        /** The xml of each section, or null if it is not known. */
+        final String[] raws;
+        /** The text of each section. */
+        final CharSequence[] texts;
+        /** Number of spans removed by coalescing while these sections were built. */
+        final int coalesced;
+        /** How long these sections took to parse. Null if they were not timed. */
+        ParseStats stats = null;
+        /** The tag handlers these sections were built with. */
+        TagHandler[] handlers = null;
+        /** True if the spans of these sections were coalesced. */
+        boolean coalesce = false;
+        /** The line height these sections were built with. */
+        int lineHeight = 0;
+
+        Sections(String[] raws, CharSequence[] texts, int coalesced) {
+            this.raws = raws;
+            this.texts = texts;
+            this.coalesced = coalesced;
+        }
+    }
+
+
+    /** Parses the sections of a document. Every thread that runs the job takes the
+     *  next section nobody has started, until none are left. */
+    private final class ParseJob implements Runnable {
+        /** The document being parsed. */
+        final XmlDocument doc;
+        /** The xml of each section. */
+        final String[] raws;
+        /** The text of each section, once parsed. */
+        final CharSequence[] sections;
+        /** Text of the sections on display, by their xml. Null if there are none, or if
+         *  they were built with other handlers, coalescing or line height. */
+        private final HashMap<String, CharSequence> reusable;
+        /** The value of {@link #getLineHeight()} during the parse. */
+        private final int lineHeight;
+        /** The tag handlers when the parse started. */
+        final TagHandler[] handlers = XmlTextView.this.handlers;
+        /** True to coalesce the spans of each section, as set when the parse started. */
+        final boolean coalesce = coalesceSpans;
+        /** The {@link #parseGeneration} this parse is for. */
+        private final int generation;
+        /** The next section to parse. */
+        private final AtomicInteger next = new AtomicInteger();
+        /** Number of spans removed by coalescing the sections. */
+        final AtomicInteger coalesced = new AtomicInteger();
+        /** True to time the calls to the tag handlers. */
+        private final boolean timed;
+        /** Time spent in the tag handlers, by every thread. */
+        final AtomicLong tagNanos = new AtomicLong();
+        /** Number of sections parsed, instead of reused. */
+        final AtomicInteger built = new AtomicInteger();
+
+        /** True if the text changed before the parse finished. */
+        volatile boolean cancelled = false;
+        /** The first error thrown while parsing, if any. */
+        volatile RuntimeException error = null;
+
+        ParseJob(String text, XmlDocument doc, int lineHeight, int generation, Sections old,
+                 boolean timed) {
+            this.doc = doc;
+            this.lineHeight = lineHeight;
+            this.generation = generation;
+            this.timed = timed;
+            sections = new CharSequence[doc.sectionCount];
+            raws = new String[doc.sectionCount];
+            for(int i=0; i<raws.length; i++)
+                raws[i] = text.substring(doc.rawStarts[i], doc.rawEnds[i]);
+
+            // Sections built another way would look different if they were built now
+            if(old == null || old.raws == null || old.handlers != handlers
+                    || old.coalesce != coalesce || old.lineHeight != lineHeight) {
+                reusable = null;
+                return;
+            }
+            reusable = new HashMap<>(old.raws.length * 2);
+            for(int i=0; i<old.raws.length; i++)
+                reusable.put(old.raws[i], old.texts[i]);
+        }
+
+
+        /** Parse sections on this thread until there are none left. */
+        @Override
+        public void run() {
+            XmlSectionBuilder builder = new XmlSectionBuilder(callback, handlers, lineHeight);
+            builder.timed = timed;
+            parsing.set(builder);
+            try {
+                int i;
+                while(!cancelled && error == null
+                        && (i = next.getAndIncrement()) < doc.sectionCount) {
+                    if(generation != parseGeneration) {
+                        cancelled = true;
+                        return;
+                    }
+                    CharSequence same = reusable == null ? null : reusable.get(raws[i]);
+                    if(same != null) {
+                        sections[i] = same;
+                        continue;
+                    }
+                    sectionStarted();
+                    CharSequence section = builder.build(doc, i);
+                    if(coalesce && section instanceof Spannable)
+                        coalesced.addAndGet(XmlSpanCoalescer.coalesce((Spannable) section));
+                    sections[i] = section;
+                    if(timed) built.incrementAndGet();
+                }
+            } catch(RuntimeException e) {
+                if(error == null) error = e;
+            } finally {
+                parsing.remove();
+                if(timed) tagNanos.addAndGet(builder.tagNanos);
+            }
+        }
+
+
+        /** Parse the sections on this thread and the worker threads,
+         *  and wait for all of them to finish. */
+        void runParallel() {
+            int helpers = Math.min(doc.sectionCount, PARALLEL_THREADS) - 1;
+            ArrayList<Future<?>> tasks = new ArrayList<>(helpers);
+            for(int i=0; i<helpers; i++)
+                tasks.add(getWorkers().submit(this));
+            run();
+
+            // Every section is taken, so helpers that have not started are not needed.
+            boolean interrupted = false;
+            for(Future<?> task : tasks) {
+                if(task.cancel(false)) continue;
+                while(true) {
+                    try {
+                        task.get();
+                        break;
+                    } catch(InterruptedException e) {
+                        interrupted = true;
+                    } catch(ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if(cause instanceof Error) throw (Error) cause;
+                        break;
+                    }
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -15,12 +15,11 @@ import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-
 import ca.marklauman.tools.ArrayCheckAdapter;
 import ca.marklauman.tools.QueryDialogBuilder;
 import ca.marklauman.tools.QueryDialogBuilder.QueryListener;
 import ca.marklauman.tools.R;
+import ca.marklauman.tools.ResourceCache;
 import ca.marklauman.tools.Utils;
 
 /** An alternative to MultiSelectPreference that can be placed in any view structure.
@@ -126,7 +125,7 @@ public class MultiSelectPreference extends LinearLayout {
 
             // Determine the values to save when items are selected.
             // Default to 0,1,2,3,4...
-            entryValues = getIntArray(ta, R.styleable.MultiSelectPreference_entryValues);
+            entryValues = getIntArray(c, ta, R.styleable.MultiSelectPreference_entryValues);
             if(entryValues == null) {
                 entryValues = new int[entries.length];
                 for(int i=0; i<entryValues.length; i++)
@@ -140,10 +139,10 @@ public class MultiSelectPreference extends LinearLayout {
 
 
             // Get the icons for the list and match them to their entries.
-            int[] rawIcons = getResourceArray(ta, R.styleable.MultiSelectPreference_entryIcons);
+            int[] rawIcons = getResourceArray(c, ta, R.styleable.MultiSelectPreference_entryIcons);
             if(rawIcons != null) {
                 // Load the icon values (paired to entry values - defaults to 0,1,2,3,4...)
-                int[] iconValues = getIntArray(ta, R.styleable.MultiSelectPreference_entryIconValues);
+                int[] iconValues = getIntArray(c, ta, R.styleable.MultiSelectPreference_entryIconValues);
                 if(iconValues == null) {
                     iconValues = new int[entries.length];
                     for(int i=0; i<iconValues.length; i++)
@@ -213,29 +212,25 @@ public class MultiSelectPreference extends LinearLayout {
 
 
     /** Get the integer array mapped to the given index.
+     * @param c The context the array is loaded from.
      * @param ta The typed array to take the value from.
      * @param index The index of the integer array in that typed array.
      * @return The resulting array, or null if no array is found. */
-    private static int[] getIntArray(TypedArray ta, int index) {
+    private static int[] getIntArray(Context c, TypedArray ta, int index) {
         int resId = ta.getResourceId(index, 0);
         if(resId == 0) return null;
-        return ta.getResources().getIntArray(resId);
+        return ResourceCache.getIntArray(c, resId);
     }
 
     /** Get the resource array mapped to the given index.
+     * @param c The context the array is loaded from.
      * @param ta The typed array to take the value from.
      * @param index The index of the resource array in that typed array.
      * @return The resulting array, or null if no array is found. */
-    private static int[] getResourceArray(TypedArray ta, int index) {
+    private static int[] getResourceArray(Context c, TypedArray ta, int index) {
         int resId = ta.getResourceId(index, 0);
         if(resId == 0) return null;
-        TypedArray ta2 = ta.getResources().obtainTypedArray(resId);
-        if(ta2 == null) return null;
-        int[] res = new int[ta2.length()];
-        for(int i=0; i<res.length; i++)
-            res[i] = ta2.getResourceId(i, 0);
-        ta2.recycle();
-        return res;
+        return ResourceCache.getResourceArray(c, resId);
     }
 
 
@@ -339,9 +334,9 @@ public class MultiSelectPreference extends LinearLayout {
             if(inverted) adapter.invertSelections();
             Integer[] saveValues = adapter.getSelections();
 
-            ArrayList<Integer> save = new ArrayList<>(saveValues.length);
-            for(int i : saveValues)
-                save.add(entryValues[i]);
+            int[] save = new int[saveValues.length];
+            for(int i=0; i<save.length; i++)
+                save[i] = entryValues[saveValues[i]];
             PreferenceManager.getDefaultSharedPreferences(getContext())
                              .edit()
                              .putString(key, Utils.join(",", save))
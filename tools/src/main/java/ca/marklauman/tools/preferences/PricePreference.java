@@ -10,6 +10,9 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import java.util.Locale;
+
+import ca.marklauman.tools.NumberFormatter;
 import ca.marklauman.tools.R;
 
 /** Simple preference that displays a price.
@@ -20,6 +23,8 @@ public class PricePreference extends LinearLayout {
 
     /** TextView used to display the price */
     private TextView vPrice;
+    /** Formats prices passed to {@link #setPrice(double)}. Created when first needed. */
+    private NumberFormatter formatter;
 
     public PricePreference(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -86,4 +91,12 @@ public class PricePreference extends LinearLayout {
     public void setPrice(CharSequence price) {
         vPrice.setText(price);
     }
+
+
+    /** Display a price in the currency of the default locale.
+     *  @param price The price, in whole units of the currency (dollars, not cents). */
+    public void setPrice(double price) {
+        if(formatter == null) formatter = new NumberFormatter(Locale.getDefault());
+        vPrice.setText(formatter.formatCurrency(price));
+    }
 }
\ No newline at end of file
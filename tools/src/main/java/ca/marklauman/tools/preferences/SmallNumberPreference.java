@@ -14,6 +14,13 @@ import ca.marklauman.tools.R;
 /** Preference used to select a small number (0-99). */
 public class SmallNumberPreference extends Preference<Integer> {
 
+    /** Text of every number this preference can display. */
+    private static final String[] NUMBERS = new String[100];
+    static {
+        for(int i=0; i<NUMBERS.length; i++)
+            NUMBERS[i] = String.valueOf(i);
+    }
+
     /** The number on display right now */
     private int num = 0;
 
@@ -107,7 +114,7 @@ public class SmallNumberPreference extends Preference<Integer> {
 
         if(num == newValue) return;
         num = newValue;
-        viewNum.setText(String.valueOf(newValue));
+        viewNum.setText(NUMBERS[num]);
         if(key != null && !isInEditMode())
             getSharedPreferences().edit()
                                   .putInt(key, num)